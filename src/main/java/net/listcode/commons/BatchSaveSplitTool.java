@@ -3,12 +3,31 @@ package net.listcode.commons;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import net.listcode.commons.batch.BisectingRetry;
 
 /**
  * 解决当次写入数据太多导致性能下降的问题，自动拆分成多个小的批量，多次写入
- * TODO 目前只处理了写入无返回值的情况，如果有返回值，目前不支持，需要扩展
+ * 有返回值的批量写入（生成的 id、upsert 的结果等）使用 batchSaveWithSplitAndReturn，返回值和输入的数据一一对应
+ * <p>
+ * batchSaveStreamWithSplit 从 Iterator、Stream、Spliterator 中边读边写，每次只在内存中保留一个小批量，适合文件、db 游标等大数据量的来源
+ * <p>
+ * 带 executor 参数的方法把小批量并发写入，适合 db 还有余力、单线程串行写入太慢的场景；
+ * 下游吃力时，可以用 {@link WriteGovernor} 限流、退避重试、熔断
  * @author LeoZhang
  */
 public class BatchSaveSplitTool {
@@ -28,7 +47,13 @@ public class BatchSaveSplitTool {
          * 3. 发生错误的小批量全部单条重试<br>
          *  注意 保存操作的幂等性，比如使用 insert ignore 保证insert只插入一次，并且不会抛出异常
          */
-        RETRY_ALL;
+        RETRY_ALL,
+        /**
+         * 4. 发生错误的小批量二分重试，只对失败的一半继续二分，直到找出每一条出错的数据，其余数据正常写入<br>
+         *  小批量中有 k 条出错的数据时，重试次数是 O(k log n)，而不是 RETRY_ALL 的 n 次；不使用 singlItemSaveFn<br>
+         *  注意 批量写入方法失败时需要整批不生效（比如在一个事务中），否则重试会重复写入
+         */
+        BISECT;
     }
 
     /**
@@ -137,44 +162,618 @@ public class BatchSaveSplitTool {
         }
         List<T> list = toList(items);
 
-        if (singlItemSaveFn == null) {
-            singlItemSaveFn = x -> {
-                batchSaveFn.accept(Arrays.asList(x));
+        Consumer<T> singleFn = singleSaveFn(batchSaveFn, singlItemSaveFn);
+
+        for (List<T> subList : Fn.split(list, blockSize)) {
+            saveBlock(batchSaveFn, subList, policy, errorItems, errors, singleFn);
+        }
+    }
+
+    /**
+     * 把大size的批量写入改成多个小size的多次批量写入，每次批量写入都经过 governor 的限流、退避重试和熔断，
+     * governor 重试后仍然失败的小批量再按 policy 处理；RETRY_ALL 的单条重试、BISECT 的二分重试只经过限流和熔断，
+     * 不退避重试，二分重试的失败也不计入熔断
+     * @param batchSaveFn
+     * @param items
+     * @param blockSize
+     * @param policy 写入出错的处理策略
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param governor 写入调速器
+     * @param <T>
+     */
+    public static <T> void batchSaveWithSplit(Consumer<Collection<T>> batchSaveFn, Collection<T> items,
+                                              int blockSize,
+                                              SaveErrorPolicy policy,
+                                              List<T> errorItems,
+                                              List<Exception> errors,
+                                              Consumer<T> singlItemSaveFn,
+                                              WriteGovernor governor) {
+        if (governor == null) {
+            throw new IllegalArgumentException("governor can't be null!");
+        }
+        if (batchSaveFn == null) {
+            throw new IllegalArgumentException("batchSaveFn can't be null!");
+        }
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must > 0 !");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy can't be null!");
+        }
+        //只有整个小批量的第一次写入退避重试，单条重试和二分重试不再退避重试，避免一条有问题的数据放大成 maxRetries 倍的写入
+        Consumer<Collection<T>> blockFn = governor.wrap(batchSaveFn);
+        Consumer<Collection<T>> bisectFn = governor.wrapBisect(batchSaveFn);
+        Consumer<T> singleFn = governor.wrapSingle(singleSaveFn(batchSaveFn, singlItemSaveFn));
+        for (List<T> subList : Fn.split(toList(items), blockSize)) {
+            saveBlock(blockFn, bisectFn, subList, policy, errorItems, errors, singleFn);
+        }
+    }
+
+    /**
+     * 从 Iterator 中边读边写，每攒够 blockSize 个写入一次，写入发生异常时，会直接抛出
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items 比如 MutiFileLineIterator，读完后不会关闭
+     * @param blockSize
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Iterator<T> items, int blockSize) {
+        batchSaveStreamWithSplit(batchSaveFn, items, blockSize, SaveErrorPolicy.THROW, null, null, null);
+    }
+
+    /**
+     * 从 Iterator 中边读边写，出错的处理和 Collection 参数的方法相同
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items 比如 MutiFileLineIterator，读完后不会关闭
+     * @param blockSize
+     * @param policy 写入出错的处理策略
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Iterator<T> items,
+                                                    int blockSize,
+                                                    SaveErrorPolicy policy,
+                                                    List<T> errorItems,
+                                                    List<Exception> errors,
+                                                    Consumer<T> singlItemSaveFn) {
+        if (items == null) {
+            return;
+        }
+        batchSaveStreamWithSplit(batchSaveFn, Spliterators.spliteratorUnknownSize(items, Spliterator.ORDERED), blockSize,
+                policy, errorItems, errors, singlItemSaveFn);
+    }
+
+    /**
+     * 从 Stream 中边读边写，每攒够 blockSize 个写入一次，写入发生异常时，会直接抛出
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items 读完后不会关闭
+     * @param blockSize
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Stream<T> items, int blockSize) {
+        batchSaveStreamWithSplit(batchSaveFn, items, blockSize, SaveErrorPolicy.THROW, null, null, null);
+    }
+
+    /**
+     * 从 Stream 中边读边写，出错的处理和 Collection 参数的方法相同
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items 读完后不会关闭
+     * @param blockSize
+     * @param policy 写入出错的处理策略
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Stream<T> items,
+                                                    int blockSize,
+                                                    SaveErrorPolicy policy,
+                                                    List<T> errorItems,
+                                                    List<Exception> errors,
+                                                    Consumer<T> singlItemSaveFn) {
+        if (items == null) {
+            return;
+        }
+        batchSaveStreamWithSplit(batchSaveFn, items.spliterator(), blockSize, policy, errorItems, errors, singlItemSaveFn);
+    }
+
+    /**
+     * 从 Spliterator 中边读边写，每攒够 blockSize 个写入一次，写入发生异常时，会直接抛出
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items
+     * @param blockSize
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Spliterator<T> items, int blockSize) {
+        batchSaveStreamWithSplit(batchSaveFn, items, blockSize, SaveErrorPolicy.THROW, null, null, null);
+    }
+
+    /**
+     * 从 Spliterator 中边读边写，只使用一个复用的小批量，内存占用和数据总量无关，出错的处理和 Collection 参数的方法相同
+     * @param batchSaveFn 传入的小批量会被复用，不能在方法返回后继续持有
+     * @param items
+     * @param blockSize
+     * @param policy 写入出错的处理策略
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param <T>
+     */
+    public static <T> void batchSaveStreamWithSplit(Consumer<Collection<T>> batchSaveFn, Spliterator<T> items,
+                                                    int blockSize,
+                                                    SaveErrorPolicy policy,
+                                                    List<T> errorItems,
+                                                    List<Exception> errors,
+                                                    Consumer<T> singlItemSaveFn) {
+        if (items == null) {
+            return;
+        }
+        if (batchSaveFn == null) {
+            throw new IllegalArgumentException("batchSaveFn can't be null!");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must > 0 !");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy can't be null!");
+        }
+        Consumer<T> singleFn = singleSaveFn(batchSaveFn, singlItemSaveFn);
+
+        List<T> block = new ArrayList<>(blockSize);
+        while (items.tryAdvance(block::add)) {
+            if (block.size() >= blockSize) {
+                saveBlock(batchSaveFn, block, policy, errorItems, errors, singleFn);
+                block.clear();
+            }
+        }
+        if (!block.isEmpty()) {
+            saveBlock(batchSaveFn, block, policy, errorItems, errors, singleFn);
+        }
+    }
+
+    /**
+     * 把大size的批量写入改成多个小size的批量，最多 maxParallelism 个小批量同时写入，写入发生异常时，未开始的小批量不再写入，
+     * 等正在写入的小批量结束后抛出
+     * @param batchSaveFn 会被多个线程并发调用，需要线程安全
+     * @param items
+     * @param blockSize
+     * @param executor 执行写入的线程池，拒绝执行时在调用线程上写入
+     * @param maxParallelism 最多同时写入的小批量数，一般不超过 db 连接池大小
+     * @param <T>
+     */
+    public static <T> void batchSaveWithSplit(Consumer<Collection<T>> batchSaveFn, Collection<T> items, int blockSize,
+                                              Executor executor, int maxParallelism) {
+        batchSaveWithSplit(batchSaveFn, items, blockSize, SaveErrorPolicy.THROW, null, null, null,
+                executor, maxParallelism, false);
+    }
+
+    /**
+     * 把大size的批量写入改成多个小size的批量，最多 maxParallelism 个小批量同时写入，出错的处理和串行写入相同：
+     * THROW 策略时，未开始的小批量不再写入，等正在写入的小批量结束后抛出；其他策略时，errorItems、errors 由这个方法加锁写入，
+     * 调用者不需要传入线程安全的列表，但在方法返回前不能读写它们
+     * @param batchSaveFn 会被多个线程并发调用，需要线程安全
+     * @param items
+     * @param blockSize
+     * @param policy 写入出错的处理策略
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param executor 执行写入的线程池，拒绝执行时在调用线程上写入
+     * @param maxParallelism 最多同时写入的小批量数，一般不超过 db 连接池大小
+     * @param ordered true 时 errorItems、errors 按数据在 items 中的顺序记录（全部写完后再记录），false 时按出错的先后记录
+     * @param <T>
+     */
+    public static <T> void batchSaveWithSplit(Consumer<Collection<T>> batchSaveFn, Collection<T> items,
+                                              int blockSize,
+                                              SaveErrorPolicy policy,
+                                              List<T> errorItems,
+                                              List<Exception> errors,
+                                              Consumer<T> singlItemSaveFn,
+                                              Executor executor,
+                                              int maxParallelism,
+                                              boolean ordered) {
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+        if (batchSaveFn == null) {
+            throw new IllegalArgumentException("batchSaveFn can't be null!");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must > 0 !");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy can't be null!");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can't be null!");
+        }
+        if (maxParallelism < 1) {
+            throw new IllegalArgumentException("maxParallelism must > 0 !");
+        }
+        List<T> list = toList(items);
+        Consumer<T> singleFn = singleSaveFn(batchSaveFn, singlItemSaveFn);
+        runParallel(Fn.split(list, blockSize), executor, maxParallelism, ordered, errorItems, errors,
+                (blockIndex, subList, blockErrorItems, blockErrors) ->
+                        saveBlock(batchSaveFn, subList, policy, blockErrorItems, blockErrors, singleFn));
+    }
+
+    /**
+     * 写入一个小批量，出错时记录到这个小批量自己的出错列表中
+     */
+    private interface BlockSaver<T> {
+        void save(int blockIndex, List<T> subList, List<T> blockErrorItems, List<Exception> blockErrors);
+    }
+
+    /*
+     * 最多 maxParallelism 个小批量同时写入，小批量写入抛出异常（THROW 策略）时，未开始的小批量不再写入，等正在写入的小批量结束后抛出
+     */
+    private static <T> void runParallel(List<List<T>> blocks, Executor executor, int maxParallelism, boolean ordered,
+                                        List<T> errorItems, List<Exception> errors, BlockSaver<T> saver) {
+        //每个小批量的出错记录，ordered 时最后按顺序合并
+        List<List<T>> allErrorItems = ordered ? new ArrayList<>(blocks.size()) : null;
+        List<List<Exception>> allErrors = ordered ? new ArrayList<>(blocks.size()) : null;
+        Object errorLock = new Object();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Semaphore permits = new Semaphore(maxParallelism);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(blocks.size());
+
+        for (int i = 0; i < blocks.size(); i++) {
+            int blockIndex = i;
+            List<T> subList = blocks.get(i);
+            List<T> blockErrorItems = new ArrayList<>(0);
+            List<Exception> blockErrors = new ArrayList<>(0);
+            if (ordered) {
+                allErrorItems.add(blockErrorItems);
+                allErrors.add(blockErrors);
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted.set(true);
+                failure.compareAndSet(null, new IllegalStateException(e));
+                break;
+            }
+            if (aborted.get()) {
+                permits.release();
+                break;
+            }
+            Runnable task = () -> {
+                try {
+                    if (aborted.get()) {
+                        return;
+                    }
+                    saver.save(blockIndex, subList, blockErrorItems, blockErrors);
+                    if (!ordered && !blockErrors.isEmpty()) {
+                        synchronized (errorLock) {
+                            addErrors(errorItems, errors, blockErrorItems, blockErrors);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    //THROW 策略，取消后续的小批量
+                    aborted.set(true);
+                    failure.compareAndSet(null, e);
+                } finally {
+                    permits.release();
+                }
             };
+            try {
+                futures.add(CompletableFuture.runAsync(task, executor));
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        //等正在写入的小批量结束，task 不会抛出异常
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            failure.compareAndSet(null, e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
         }
+        if (ordered) {
+            for (int i = 0; i < allErrorItems.size(); i++) {
+                addErrors(errorItems, errors, allErrorItems.get(i), allErrors.get(i));
+            }
+        }
+    }
+
+    /**
+     * 有返回值的批量写入（比如生成的 id、upsert 的结果），拆分成多次批量写入，每次写入100个，写入发生异常时，会直接抛出
+     * @param batchSaveFn 返回值和传入的数据一一对应
+     * @param items
+     * @param <T>
+     * @param <R>
+     * @return 和 items 一一对应的返回值
+     */
+    public static <T, R> List<R> batchSaveWithSplitAndReturn(Function<Collection<T>, List<R>> batchSaveFn,
+                                                             Collection<T> items) {
+        return batchSaveWithSplitAndReturn(batchSaveFn, items, 100, SaveErrorPolicy.THROW, null, null, null);
+    }
 
+    /**
+     * 有返回值的批量写入，拆分成多个小size的多次批量写入，每个小批量的返回值直接写到预先分配好的结果数组中
+     * @param batchSaveFn 返回值和传入的数据一一对应，个数不对时按写入失败处理
+     * @param items
+     * @param blockSize
+     * @param policy 写入出错的处理策略，写入失败的位置返回值为null
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param <T>
+     * @param <R>
+     * @return 和 items 一一对应的返回值
+     */
+    public static <T, R> List<R> batchSaveWithSplitAndReturn(Function<Collection<T>, List<R>> batchSaveFn,
+                                                             Collection<T> items,
+                                                             int blockSize,
+                                                             SaveErrorPolicy policy,
+                                                             List<T> errorItems,
+                                                             List<Exception> errors,
+                                                             Function<T, R> singlItemSaveFn) {
+        if (items == null || items.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        checkReturnArgs(batchSaveFn, blockSize, policy);
+        List<T> list = toList(items);
+        Function<T, R> singleFn = singleSaveFnWithReturn(batchSaveFn, singlItemSaveFn);
+        @SuppressWarnings("unchecked")
+        R[] results = (R[]) new Object[list.size()];
+        int offset = 0;
         for (List<T> subList : Fn.split(list, blockSize)) {
-            try {
-                batchSaveFn.accept(subList);
-            } catch(Exception e1) {
-                switch (policy) {
-                    case THROW:
-                        throw new IllegalStateException(e1);
-                    case IGNORE_SMALL_BATCH:
-                        if (errorItems != null) {
-                            errorItems.addAll(subList);
+            saveBlockWithReturn(batchSaveFn, subList, offset, results, policy, errorItems, errors, singleFn);
+            offset += subList.size();
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 有返回值的批量写入，拆分成多个小size的批量，最多 maxParallelism 个小批量同时写入，出错的处理和无返回值的并发写入相同
+     * @param batchSaveFn 返回值和传入的数据一一对应，会被多个线程并发调用，需要线程安全
+     * @param items
+     * @param blockSize
+     * @param policy 写入出错的处理策略，写入失败的位置返回值为null
+     * @param errorItems 非THROW策略时，记录写入失败的数据，如果null，会导致无法记录
+     * @param errors 非THROW策略时，记录写入失败时发生的异常，如果null，会导致无法记录
+     * @param singlItemSaveFn RETRY_ALL策略时，单个数据写入的方法，如果是null，会使用batchSaveFn方法包装代替
+     * @param executor 执行写入的线程池，拒绝执行时在调用线程上写入
+     * @param maxParallelism 最多同时写入的小批量数
+     * @param ordered true 时 errorItems、errors 按数据在 items 中的顺序记录，返回值总是和 items 一一对应
+     * @param <T>
+     * @param <R>
+     * @return 和 items 一一对应的返回值
+     */
+    public static <T, R> List<R> batchSaveWithSplitAndReturn(Function<Collection<T>, List<R>> batchSaveFn,
+                                                             Collection<T> items,
+                                                             int blockSize,
+                                                             SaveErrorPolicy policy,
+                                                             List<T> errorItems,
+                                                             List<Exception> errors,
+                                                             Function<T, R> singlItemSaveFn,
+                                                             Executor executor,
+                                                             int maxParallelism,
+                                                             boolean ordered) {
+        if (items == null || items.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        checkReturnArgs(batchSaveFn, blockSize, policy);
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can't be null!");
+        }
+        if (maxParallelism < 1) {
+            throw new IllegalArgumentException("maxParallelism must > 0 !");
+        }
+        List<T> list = toList(items);
+        Function<T, R> singleFn = singleSaveFnWithReturn(batchSaveFn, singlItemSaveFn);
+        @SuppressWarnings("unchecked")
+        R[] results = (R[]) new Object[list.size()];
+        //每个小批量写不同的位置，不需要加锁，runParallel 返回前等待所有小批量结束，保证写入可见
+        runParallel(Fn.split(list, blockSize), executor, maxParallelism, ordered, errorItems, errors,
+                (blockIndex, subList, blockErrorItems, blockErrors) ->
+                        saveBlockWithReturn(batchSaveFn, subList, blockIndex * blockSize, results, policy,
+                                blockErrorItems, blockErrors, singleFn));
+        return Arrays.asList(results);
+    }
+
+    private static <T, R> void checkReturnArgs(Function<Collection<T>, List<R>> batchSaveFn, int blockSize,
+                                               SaveErrorPolicy policy) {
+        if (batchSaveFn == null) {
+            throw new IllegalArgumentException("batchSaveFn can't be null!");
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must > 0 !");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy can't be null!");
+        }
+    }
+
+    private static <T, R> Function<T, R> singleSaveFnWithReturn(Function<Collection<T>, List<R>> batchSaveFn,
+                                                                Function<T, R> singlItemSaveFn) {
+        if (singlItemSaveFn != null) {
+            return singlItemSaveFn;
+        }
+        return x -> checkedApply(batchSaveFn, Arrays.asList(x)).get(0);
+    }
+
+    /* 调用有返回值的批量写入方法，返回值个数不对时抛出异常 */
+    private static <T, R> List<R> checkedApply(Function<Collection<T>, List<R>> batchSaveFn, List<T> subList) {
+        List<R> rList = batchSaveFn.apply(subList);
+        if (rList == null || rList.size() != subList.size()) {
+            throw new IllegalStateException("batchSaveFn returned " + (rList == null ? "null" : rList.size() + " results")
+                    + " for " + subList.size() + " items");
+        }
+        return rList;
+    }
+
+    /**
+     * 写入一个有返回值的小批量，返回值写到 results 的 offset 开始的位置，按策略处理写入异常，失败的位置保持null
+     */
+    private static <T, R> void saveBlockWithReturn(Function<Collection<T>, List<R>> batchSaveFn, List<T> subList,
+                                                   int offset, R[] results,
+                                                   SaveErrorPolicy policy,
+                                                   List<T> errorItems,
+                                                   List<Exception> errors,
+                                                   Function<T, R> singlItemSaveFn) {
+        try {
+            List<R> rList = checkedApply(batchSaveFn, subList);
+            for (int i = 0; i < rList.size(); i++) {
+                results[offset + i] = rList.get(i);
+            }
+        } catch(Exception e1) {
+            switch (policy) {
+                case THROW:
+                    throw new IllegalStateException(e1);
+                case IGNORE_SMALL_BATCH:
+                    if (errorItems != null) {
+                        errorItems.addAll(subList);
+                    }
+                    if (errors != null) {
+                        errors.add(e1);
+                    }
+                    break;
+                case RETRY_ALL:
+                    for (int i = 0; i < subList.size(); i++) {
+                        T item = subList.get(i);
+                        try {
+                            results[offset + i] = singlItemSaveFn.apply(item);
+                        } catch (Exception e2) {
+                            if (errorItems != null) {
+                                errorItems.add(item);
+                            }
+                            if (errors != null) {
+                                errors.add(e2);
+                            }
                         }
-                        if (errors != null) {
-                            errors.add(e1);
+                    }
+                    break;
+                case BISECT:
+                    RuntimeException first = e1 instanceof RuntimeException ? (RuntimeException) e1 : new IllegalStateException(e1);
+                    BisectingRetry.retry(subList, first, l -> checkedApply(batchSaveFn, l),
+                            new BisectingRetry.Handler<T, R>() {
+                        @Override
+                        public void success(int from, List<R> returns) {
+                            for (int i = 0; i < returns.size(); i++) {
+                                results[offset + from + i] = returns.get(i);
+                            }
                         }
-                        break;
-                    case RETRY_ALL:
-                        for (T i : subList) {
-                            try {
-                                singlItemSaveFn.accept(i);
-                            } catch (Exception e2) {
-                                if (errorItems != null) {
-                                    errorItems.add(i);
-                                }
-                                if (errors != null) {
-                                    errors.add(e2);
-                                }
+
+                        @Override
+                        public void failure(int index, T item, RuntimeException e2) {
+                            if (errorItems != null) {
+                                errorItems.add(item);
+                            }
+                            if (errors != null) {
+                                errors.add(e2);
                             }
                         }
-                        break;
-                    default:
-                        throw new IllegalArgumentException("policy illegal!");
-                }
+                    });
+                    break;
+                default:
+                    throw new IllegalArgumentException("policy illegal!");
+            }
+        }
+    }
+
+    private static <T> void addErrors(List<T> errorItems, List<Exception> errors,
+                                      List<T> chunkErrorItems, List<Exception> chunkErrors) {
+        if (errorItems != null) {
+            errorItems.addAll(chunkErrorItems);
+        }
+        if (errors != null) {
+            errors.addAll(chunkErrors);
+        }
+    }
+
+    private static <T> Consumer<T> singleSaveFn(Consumer<Collection<T>> batchSaveFn, Consumer<T> singlItemSaveFn) {
+        if (singlItemSaveFn != null) {
+            return singlItemSaveFn;
+        }
+        return x -> {
+            batchSaveFn.accept(Arrays.asList(x));
+        };
+    }
+
+    /**
+     * 写入一个小批量，按策略处理写入异常，THROW 策略时抛出 IllegalStateException
+     */
+    private static <T> void saveBlock(Consumer<Collection<T>> batchSaveFn, List<T> subList,
+                                      SaveErrorPolicy policy,
+                                      List<T> errorItems,
+                                      List<Exception> errors,
+                                      Consumer<T> singlItemSaveFn) {
+        saveBlock(batchSaveFn, batchSaveFn, subList, policy, errorItems, errors, singlItemSaveFn);
+    }
+
+    /**
+     * 同上，BISECT 策略二分重试时使用 bisectFn 写入半个批次
+     */
+    private static <T> void saveBlock(Consumer<Collection<T>> batchSaveFn, Consumer<Collection<T>> bisectFn,
+                                      List<T> subList,
+                                      SaveErrorPolicy policy,
+                                      List<T> errorItems,
+                                      List<Exception> errors,
+                                      Consumer<T> singlItemSaveFn) {
+        try {
+            batchSaveFn.accept(subList);
+        } catch(Exception e1) {
+            switch (policy) {
+                case THROW:
+                    throw new IllegalStateException(e1);
+                case IGNORE_SMALL_BATCH:
+                    if (errorItems != null) {
+                        errorItems.addAll(subList);
+                    }
+                    if (errors != null) {
+                        errors.add(e1);
+                    }
+                    break;
+                case RETRY_ALL:
+                    for (T i : subList) {
+                        try {
+                            singlItemSaveFn.accept(i);
+                        } catch (Exception e2) {
+                            if (errorItems != null) {
+                                errorItems.add(i);
+                            }
+                            if (errors != null) {
+                                errors.add(e2);
+                            }
+                        }
+                    }
+                    break;
+                case BISECT:
+                    RuntimeException first = e1 instanceof RuntimeException ? (RuntimeException) e1 : new IllegalStateException(e1);
+                    BisectingRetry.retry(subList, first, l -> {
+                        bisectFn.accept(l);
+                        return null;
+                    }, new BisectingRetry.Handler<T, Void>() {
+                        @Override
+                        public void success(int offset, List<Void> returns) {
+                        }
+
+                        @Override
+                        public void failure(int index, T item, RuntimeException e2) {
+                            if (errorItems != null) {
+                                errorItems.add(item);
+                            }
+                            if (errors != null) {
+                                errors.add(e2);
+                            }
+                        }
+                    });
+                    break;
+                default:
+                    throw new IllegalArgumentException("policy illegal!");
             }
         }
     }
@@ -0,0 +1,416 @@
+package net.listcode.commons;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 批量写入的调速器，保护正在吃力的下游（比如从库），让吞吐平滑下降而不是把 db 压垮：
+ * <ol>
+ *     <li>令牌桶限流，按每秒行数、每秒批次数限制写入速度</li>
+ *     <li>单个批次写入失败时按指数退避重试，可以通过 {@link Builder#retryOn(Predicate)} 只重试暂时性的异常</li>
+ *     <li>熔断，连续失败达到阈值后暂停写入，冷却时间过后只放一个批次试探，成功后恢复，失败则继续暂停</li>
+ * </ol>
+ * 一个实例可以被多个线程共享，比如 BatchSaveSplitTool 的并发写入；
+ * 使用 {@link #wrap(Consumer)} 包装批量写入方法，或者直接传给 BatchSaveSplitTool 带 WriteGovernor 参数的方法
+ * @author LeoZhang
+ */
+@Slf4j
+public class WriteGovernor {
+
+    public enum State {
+        /**
+         * 正常写入
+         */
+        CLOSED,
+        /**
+         * 熔断中，暂停写入
+         */
+        OPEN,
+        /**
+         * 冷却时间已过，一个批次正在试探
+         */
+        HALF_OPEN;
+    }
+
+    /** 不限速时为null */
+    private final TokenBucket rowBucket;
+    private final TokenBucket chunkBucket;
+    private final int maxRetries;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    /** 0表示不熔断 */
+    private final int failureThreshold;
+    private final long openNanos;
+    /** 哪些异常是暂时性的、值得重试和计入熔断 */
+    private final Predicate<RuntimeException> retryable;
+
+    /*
+     * 以下变量都由 breakerLock 保护
+     */
+    private final Object breakerLock = new Object();
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+
+    private WriteGovernor(Builder builder) {
+        this.rowBucket = builder.maxRowsPerSecond > 0 ? new TokenBucket(builder.maxRowsPerSecond) : null;
+        this.chunkBucket = builder.maxChunksPerSecond > 0 ? new TokenBucket(builder.maxChunksPerSecond) : null;
+        this.maxRetries = builder.maxRetries;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(builder.initialBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxBackoffMillis);
+        this.failureThreshold = builder.failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMillis);
+        this.retryable = builder.retryable;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * 包装批量写入方法，每次调用都经过限流、重试、熔断
+     * @param batchSaveFn
+     * @param <T>
+     * @return
+     */
+    public <T> Consumer<Collection<T>> wrap(Consumer<Collection<T>> batchSaveFn) {
+        return items -> execute(items.size(), () -> {
+            batchSaveFn.accept(items);
+            return null;
+        });
+    }
+
+    /**
+     * 包装单条写入方法，比如 RETRY_ALL 策略的单条重试，经过限流和熔断，但不退避重试：
+     * 单条写入失败通常是这条数据本身有问题，逐条重试只会成倍放大对下游的压力
+     * @param singlItemSaveFn
+     * @param <T>
+     * @return
+     */
+    public <T> Consumer<T> wrapSingle(Consumer<T> singlItemSaveFn) {
+        return item -> execute(1, () -> {
+            singlItemSaveFn.accept(item);
+            return null;
+        }, 0, true);
+    }
+
+    /**
+     * 包装二分重试时对半个批次的写入，比如 BISECT 策略的重试，经过限流和熔断，但不退避重试，失败也不计入熔断：
+     * 整个批次已经经过退避重试，二分时的失败通常是其中有问题的数据导致的，计入熔断会让一条坏数据把熔断器打开；
+     * 熔断后试探的批次失败时仍然重新熔断
+     * @param batchSaveFn
+     * @param <T>
+     * @return
+     */
+    public <T> Consumer<Collection<T>> wrapBisect(Consumer<Collection<T>> batchSaveFn) {
+        return items -> execute(items.size(), () -> {
+            batchSaveFn.accept(items);
+            return null;
+        }, 0, false);
+    }
+
+    /**
+     * 包装有返回值的批量写入方法
+     * @param batchSaveFn
+     * @param <T>
+     * @param <R>
+     * @return
+     */
+    public <T, R> Function<Collection<T>, List<R>> wrapWithReturn(Function<Collection<T>, List<R>> batchSaveFn) {
+        return items -> execute(items.size(), () -> batchSaveFn.apply(items));
+    }
+
+    /**
+     * 执行一次写入：等待熔断恢复、获取令牌，可重试的异常退避重试，重试次数用完后抛出最后一次的异常；
+     * 不可重试的异常（见 {@link Builder#retryOn(Predicate)}）直接抛出，也不计入熔断
+     * @param rows 这次写入的行数
+     * @param call
+     * @param <R>
+     * @return
+     */
+    public <R> R execute(int rows, Supplier<R> call) {
+        return execute(rows, call, this.maxRetries, true);
+    }
+
+    /* countFailures 为false时，可重试的异常也不计入连续失败，只有试探失败时重新熔断 */
+    private <R> R execute(int rows, Supplier<R> call, int maxRetries, boolean countFailures) {
+        long backoff = this.initialBackoffNanos;
+        for (int attempt = 0; ; attempt++) {
+            boolean probe = awaitPermission();
+            //试探的批次无论以什么方式结束（包括限流等待被中断、Error），都必须让熔断器离开 HALF_OPEN，否则其他线程会一直等待
+            boolean settled = false;
+            try {
+                if (this.chunkBucket != null) {
+                    sleepNanos(this.chunkBucket.reserve(1));
+                }
+                if (this.rowBucket != null) {
+                    sleepNanos(this.rowBucket.reserve(rows));
+                }
+                R r;
+                try {
+                    r = call.get();
+                } catch (RuntimeException e) {
+                    if (!this.retryable.test(e)) {
+                        onNonRetryable(probe);
+                        settled = true;
+                        throw e;
+                    }
+                    if (!countFailures && !probe) {
+                        settled = true;
+                        throw e;
+                    }
+                    onFailure(probe);
+                    settled = true;
+                    if (attempt >= maxRetries) {
+                        throw e;
+                    }
+                    //等待 [backoff/2, backoff) 的随机时长，避免多个线程同时重试
+                    long half = backoff / 2;
+                    long sleep = half + (half > 0 ? ThreadLocalRandom.current().nextLong(half) : 0);
+                    log.warn("write of {} rows failed, retry {} after {} ms: {}", rows, attempt + 1,
+                            TimeUnit.NANOSECONDS.toMillis(sleep), e.getMessage());
+                    sleepNanos(sleep);
+                    backoff = Math.min(this.maxBackoffNanos, backoff * 2);
+                    continue;
+                } catch (Throwable e) {
+                    onFailure(probe);
+                    settled = true;
+                    throw e;
+                }
+                onSuccess();
+                settled = true;
+                return r;
+            } finally {
+                if (probe && !settled) {
+                    abortProbe();
+                }
+            }
+        }
+    }
+
+    /*
+     * 熔断中时等待冷却，冷却后只放一个线程试探，其他线程等试探的结果；返回 true 表示这次写入是试探
+     */
+    private boolean awaitPermission() {
+        if (this.failureThreshold == 0) {
+            return false;
+        }
+        synchronized (this.breakerLock) {
+            for (;;) {
+                if (this.state == State.CLOSED) {
+                    return false;
+                }
+                long wait = this.openUntil - System.nanoTime();
+                if (this.state == State.OPEN && wait <= 0) {
+                    this.state = State.HALF_OPEN;
+                    return true;
+                }
+                try {
+                    //HALF_OPEN 时等试探的结果，也限时等待，醒来后重新检查状态
+                    TimeUnit.NANOSECONDS.timedWait(this.breakerLock, this.state == State.OPEN ? wait : this.openNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private void onSuccess() {
+        if (this.failureThreshold == 0) {
+            return;
+        }
+        synchronized (this.breakerLock) {
+            this.consecutiveFailures = 0;
+            if (this.state != State.CLOSED) {
+                log.info("write recovered, circuit closed");
+                this.state = State.CLOSED;
+                this.breakerLock.notifyAll();
+            }
+        }
+    }
+
+    private void onFailure(boolean probe) {
+        if (this.failureThreshold == 0) {
+            return;
+        }
+        synchronized (this.breakerLock) {
+            this.consecutiveFailures++;
+            if (probe || (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+                log.warn("{} consecutive write failures, circuit open for {} ms", this.consecutiveFailures,
+                        TimeUnit.NANOSECONDS.toMillis(this.openNanos));
+                this.state = State.OPEN;
+                this.openUntil = System.nanoTime() + this.openNanos;
+                this.breakerLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * 不可重试的异常（比如违反约束）说明下游能正常响应，不计入连续失败；试探的批次遇到这种异常时恢复写入
+     */
+    private void onNonRetryable(boolean probe) {
+        if (probe) {
+            onSuccess();
+        }
+    }
+
+    /*
+     * 试探的批次还没有真正写入就退出了（比如限流等待被中断），退回 OPEN，冷却时间已过，下一个线程立即试探
+     */
+    private void abortProbe() {
+        synchronized (this.breakerLock) {
+            if (this.state == State.HALF_OPEN) {
+                this.state = State.OPEN;
+                this.breakerLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return 熔断器的当前状态
+     */
+    public State getState() {
+        synchronized (this.breakerLock) {
+            return this.state;
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 令牌桶，容量为一秒的令牌数；令牌不够时先预支，返回需要等待的时长，一次申请超过容量也能通过
+     */
+    private static final class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(long permitsPerSecond) {
+            this.permitsPerNano = permitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = permitsPerSecond;
+            this.tokens = permitsPerSecond;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /* 返回需要等待的纳秒数 */
+        private synchronized long reserve(int permits) {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.permitsPerNano);
+            this.lastRefill = now;
+            this.tokens -= permits;
+            return this.tokens >= 0 ? 0 : (long) (-this.tokens / this.permitsPerNano);
+        }
+    }
+
+    /**
+     * WriteGovernor 构造器，默认不限速、不重试、不熔断
+     */
+    public static final class Builder {
+        private long maxRowsPerSecond = 0;
+        private long maxChunksPerSecond = 0;
+        private int maxRetries = 0;
+        private long initialBackoffMillis = 100;
+        private long maxBackoffMillis = 10_000;
+        private int failureThreshold = 0;
+        private long openMillis = 0;
+        private Predicate<RuntimeException> retryable = e -> true;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxRowsPerSecond 每秒最多写入的行数
+         */
+        public Builder maxRowsPerSecond(long maxRowsPerSecond) {
+            if (maxRowsPerSecond < 1) {
+                throw new IllegalArgumentException("maxRowsPerSecond must > 0 !");
+            }
+            this.maxRowsPerSecond = maxRowsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param maxChunksPerSecond 每秒最多写入的批次数
+         */
+        public Builder maxChunksPerSecond(long maxChunksPerSecond) {
+            if (maxChunksPerSecond < 1) {
+                throw new IllegalArgumentException("maxChunksPerSecond must > 0 !");
+            }
+            this.maxChunksPerSecond = maxChunksPerSecond;
+            return this;
+        }
+
+        /**
+         * 写入失败时指数退避重试，每次重试的等待时长翻倍，实际等待 [backoff/2, backoff) 的随机时长
+         * @param maxRetries 最多重试次数
+         * @param initialBackoffMillis 第一次重试前的等待时长
+         * @param maxBackoffMillis 最长等待时长
+         */
+        public Builder retry(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("maxRetries must >= 0 !");
+            }
+            if (initialBackoffMillis < 1 || maxBackoffMillis < initialBackoffMillis) {
+                throw new IllegalArgumentException("backoff illegal!");
+            }
+            this.maxRetries = maxRetries;
+            this.initialBackoffMillis = initialBackoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /**
+         * 连续失败 failureThreshold 次（包括重试）后熔断，暂停所有写入 openMillis，之后放一个批次试探
+         * @param failureThreshold
+         * @param openMillis
+         */
+        public Builder circuitBreaker(int failureThreshold, long openMillis) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("failureThreshold must > 0 !");
+            }
+            if (openMillis < 1) {
+                throw new IllegalArgumentException("openMillis must > 0 !");
+            }
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+            return this;
+        }
+
+        /**
+         * 判断写入异常是不是暂时性的（比如连接超时、死锁），只有暂时性的异常才退避重试、计入熔断；
+         * 数据本身的问题（比如违反唯一约束）直接抛出，重试只会放大下游压力。默认所有异常都是暂时性的
+         * @param retryable
+         */
+        public Builder retryOn(Predicate<RuntimeException> retryable) {
+            if (retryable == null) {
+                throw new IllegalArgumentException("retryable can't be null!");
+            }
+            this.retryable = retryable;
+            return this;
+        }
+
+        public WriteGovernor build() {
+            return new WriteGovernor(this);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.listcode.commons.batch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据每次写入的耗时自动调整批次大小，AIMD（加性增、乘性减）：
+ * 攒满的批次写入耗时不超过目标值时批次加一个步长，超过目标值或者写入失败时批次减半，始终在 [min, max] 之间
+ * @author leo
+ *
+ */
+final class AdaptiveBatchSize {
+
+	private final int min;
+	private final int max;
+	private final long targetNanos;
+	private final int step;
+
+	private volatile int current;
+	/** 写入耗时的指数移动平均，纳秒 */
+	private volatile long avgLatencyNanos = 0;
+	/** 写入吞吐的指数移动平均，条/秒 */
+	private volatile long avgThroughput = 0;
+
+	AdaptiveBatchSize(int initial, int min, int max, long targetLatencyMillis) {
+		this.min = min;
+		this.max = max;
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+		this.step = Math.max(1, (max - min) / 20);
+		this.current = Math.min(max, Math.max(min, initial));
+	}
+
+	int current() {
+		return this.current;
+	}
+
+	long avgLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.avgLatencyNanos);
+	}
+
+	long avgThroughput() {
+		return this.avgThroughput;
+	}
+
+	/**
+	 * 记录一次写入
+	 * @param batchSize 批次大小
+	 * @param latencyNanos 写入耗时
+	 * @param success 是否写入成功
+	 */
+	synchronized void record(int batchSize, long latencyNanos, boolean success) {
+		long avg = this.avgLatencyNanos;
+		this.avgLatencyNanos = avg == 0 ? latencyNanos : (avg * 7 + latencyNanos) / 8;
+		if (latencyNanos > 0) {
+			long tps = batchSize * TimeUnit.SECONDS.toNanos(1) / latencyNanos;
+			long avgTps = this.avgThroughput;
+			this.avgThroughput = avgTps == 0 ? tps : (avgTps * 7 + tps) / 8;
+		}
+
+		int size = this.current;
+		if (!success || latencyNanos > this.targetNanos) {
+			this.current = Math.max(this.min, size / 2);
+		} else if (batchSize >= size) {
+			//只有攒满的批次才能说明当前大小还有余量，超时触发的小批次不参与增长
+			this.current = Math.min(this.max, size + this.step);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package net.listcode.commons.batch;
 import java.util.Date;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -54,6 +55,8 @@ public abstract class BaseTimeTask implements Runnable {
 	 * 被多个线程读写
 	 */
 	private volatile TaskState taskState = TaskState.notStart;
+	/** 由 TimeTaskScheduler 托管时，正在执行 doit 或 clearUp 的工作线程，由 this 的监视器保护 */
+	private Thread runner;
 	/**
 	 * 检查是否需要sleep，需要的话，sleep到需要执行的时间点
 	 * @throws InterruptedException
@@ -100,9 +103,13 @@ public abstract class BaseTimeTask implements Runnable {
 		this.taskState = (TaskState.init);
 		while(this.taskState != TaskState.stoped && this.taskState != TaskState.stoping) {
 			try {
-				this.taskState = TaskState.sleeping;
+				if (!transit(TaskState.sleeping)) {
+					break;
+				}
 				checkAndMaySleep();
-				this.taskState = TaskState.running;
+				if (!transit(TaskState.running)) {
+					break;
+				}
 				doit();
 			} catch(InterruptedException inter) {
 				// 中断的发起者，已经改变了状态，不用管，会退出循环
@@ -117,7 +124,8 @@ public abstract class BaseTimeTask implements Runnable {
 		}
 		
 		if (this.taskState == TaskState.stoping) {
-			//收尾处理
+			//收尾处理，先清除停止时发出的中断，否则 clearUp 中的第一个阻塞调用就会被中断；超时后 stopSafly 会再中断一次
+			Thread.interrupted();
 			try {
 				clearUp();
 			} catch (InterruptedException e) {
@@ -137,6 +145,17 @@ public abstract class BaseTimeTask implements Runnable {
 	}
 
 
+	/*
+	 * 切换运行状态，已经被要求停止时不切换，避免覆盖掉 stoping 导致任务停不下来
+	 */
+	private synchronized boolean transit(TaskState to) {
+		if (this.taskState == TaskState.stoping || this.taskState == TaskState.stoped) {
+			return false;
+		}
+		this.taskState = to;
+		return true;
+	}
+
 	/**
 	 * 要求可以被中断，最后一次运行时逻辑上要允许
 	 * 
@@ -157,8 +176,7 @@ public abstract class BaseTimeTask implements Runnable {
 	 */
 	public final synchronized FutureTask<Boolean> stopSafly(final Thread handle, final long timeout) {
 		//使用异步任务来停止，不会阻塞调度线程
-		this.taskState = TaskState.stoping;
-		handle.interrupt();
+		signalStop(handle);
 		//newTask(this, timeout, handle);
 		
 		final BaseTimeTask waitObj = this;
@@ -187,6 +205,127 @@ public abstract class BaseTimeTask implements Runnable {
 		return this.taskState == TaskState.stoped;
 	}
 	
+	/**
+	 * 只发出停止信号，不等待，用于同时停止多个用自己线程运行的任务（见 ShutdownCoordinator）
+	 * @param handle 运行这个任务的线程
+	 */
+	final synchronized void signalStop(Thread handle) {
+		if (this.taskState == TaskState.stoped) {
+			return;
+		}
+		this.taskState = TaskState.stoping;
+		handle.interrupt();
+	}
+	
+	/*
+	 * 以下方法供 TimeTaskScheduler 使用，任务被调度器托管时不占用自己的线程，每次执行都在调度器的工作线程上，
+	 * 状态的变化和 run() 一致：sleeping -> running -> sleeping ... -> stoping -> stoped
+	 */
+	
+	/**
+	 * 交给调度器托管，一个任务只能启动一次
+	 * @return false 表示任务已经启动过
+	 */
+	final synchronized boolean markScheduled() {
+		if (this.taskState != TaskState.notStart) {
+			return false;
+		}
+		this.taskState = TaskState.sleeping;
+		return true;
+	}
+	
+	/**
+	 * 执行 doit 之前调用
+	 * @return false 表示任务正在停止，不要再执行
+	 */
+	final synchronized boolean beforeScheduledRun() {
+		if (this.taskState != TaskState.sleeping) {
+			return false;
+		}
+		this.taskState = TaskState.running;
+		this.runner = Thread.currentThread();
+		return true;
+	}
+	
+	/**
+	 * doit 返回之后调用，清除停止时可能留下的中断标记，工作线程还要执行别的任务
+	 * @return false 表示执行期间任务被要求停止，调用者需要接着执行 {@link #finishScheduled()}
+	 */
+	final synchronized boolean afterScheduledRun() {
+		this.runner = null;
+		Thread.interrupted();
+		if (this.taskState == TaskState.stoping) {
+			return false;
+		}
+		this.taskState = TaskState.sleeping;
+		return true;
+	}
+	
+	/**
+	 * 要求停止，正在执行 doit 时中断执行的线程
+	 * @return true 表示任务没有在执行，调用者需要负责执行 {@link #finishScheduled()}；已经在停止或者已经停止时返回false
+	 */
+	final synchronized boolean requestStop() {
+		if (this.taskState == TaskState.stoping || this.taskState == TaskState.stoped) {
+			return false;
+		}
+		boolean idle = this.taskState != TaskState.running;
+		this.taskState = TaskState.stoping;
+		if (this.runner != null) {
+			this.runner.interrupt();
+		}
+		return idle;
+	}
+	
+	/**
+	 * 执行收尾方法，然后标记为已停止
+	 */
+	final void finishScheduled() {
+		synchronized (this) {
+			this.runner = Thread.currentThread();
+		}
+		try {
+			clearUp();
+		} catch(Exception e) {
+			// 包括 InterruptedException，中断标记在下面清除
+			log.warn(e.getMessage(), e);
+		}
+		synchronized (this) {
+			this.runner = null;
+			Thread.interrupted();
+			this.taskState = TaskState.stoped;
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * 等待任务停止，超时后再中断一次正在执行的线程（和 stopSafly 一样）
+	 * @return 是否已经停止
+	 */
+	final synchronized boolean awaitStoped(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long wait;
+		while (this.taskState != TaskState.stoped && (wait = deadline - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, wait);
+		}
+		if (this.taskState != TaskState.stoped && this.runner != null) {
+			this.runner.interrupt();
+		}
+		return this.taskState == TaskState.stoped;
+	}
+	
+	final Date getFixRunPoint() {
+		return this.fixRunPoint;
+	}
+	
+	final int getRunIntervalOfSecond() {
+		return this.runIntervalOfSecond;
+	}
+	
+	final boolean isRunAtStart() {
+		return this.isRunAtStart;
+	}
+	
 //	public synchronized DeamonStat getState() {
 //		return this.deamonStat;
 //	}
@@ -0,0 +1,84 @@
+package net.listcode.commons.batch;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 从缓冲池中借出的一个批次，本身就是批次数据的 List，写入完成后调用 {@link #release()} 把缓冲归还到池中重复使用
+ * <p>
+ * release 之后不能再访问这个批次；没有 release 的批次会被 GC 回收，不会泄漏，只是少了一次复用
+ * @author leo
+ *
+ * @param <T>
+ */
+public final class BatchLease<T> extends AbstractList<T> implements RandomAccess {
+
+	private final List<T> items;
+	/** 所属的缓冲池，不是从池中借出的为null */
+	private final BufferPool<T> pool;
+	private final AtomicBoolean released = new AtomicBoolean(false);
+
+	BatchLease(int capacity, BufferPool<T> pool) {
+		this.items = new ArrayList<>(capacity);
+		this.pool = pool;
+	}
+
+	/* 包装一个不属于缓冲池的批次，比如溢写回放的批次，release 什么都不做 */
+	BatchLease(List<T> items) {
+		this.items = items;
+		this.pool = null;
+	}
+
+	/**
+	 * 写入完成，把缓冲归还到池中，多次调用只有第一次生效
+	 */
+	public void release() {
+		if (this.released.compareAndSet(false, true) && this.pool != null) {
+			this.items.clear();
+			this.pool.recycle(this);
+		}
+	}
+
+	/* 从池中再次借出 */
+	void reuse() {
+		this.released.set(false);
+	}
+
+	@Override
+	public T get(int index) {
+		return this.items.get(index);
+	}
+
+	@Override
+	public int size() {
+		return this.items.size();
+	}
+
+	@Override
+	public boolean add(T t) {
+		return this.items.add(t);
+	}
+
+	@Override
+	public void add(int index, T element) {
+		this.items.add(index, element);
+	}
+
+	@Override
+	public T set(int index, T element) {
+		return this.items.set(index, element);
+	}
+
+	@Override
+	public T remove(int index) {
+		return this.items.remove(index);
+	}
+
+	@Override
+	public void clear() {
+		this.items.clear();
+	}
+}
@@ -0,0 +1,345 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 批量读取的通用类，解决 N+1 查询，适用于单个查询低效，批量查询高效的场景，和 LazyBatchSaverWithReturn 是对称的
+ * <p>
+ * 多个线程调用 {@link #load(Object)} 拿到 ValueHolder，在一个调度窗口（maxDelay）内、或者攒够 maxBatchSize 个不同的 key 时，
+ * 用一次批量查询取回所有值；同一个 key 在查询完成前被多次 load 只查询一次，打开缓存后查询过的 key 不再查询。
+ * ValueHolder.get() 时值还没有取回会等待所在批次查询完成，不会单独触发查询，否则多个线程各自 get 时批次就攒不起来了；
+ * 需要立即查询时调用 {@link #dispatch()}
+ * <p>
+ * 批量查询返回的 map 中没有的 key，值为null
+ * @author leo
+ *
+ * @param <KEY>
+ * @param <V>
+ */
+@Slf4j
+public class BatchLoader<KEY, V> {
+
+	private final Function<List<KEY>, Map<KEY, V>> loadFn;
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+	private final HashedWheelTimer timer;
+	private final Executor executor;
+	/** 不缓存时为null */
+	private final Map<KEY, V> cache;
+
+	/*
+	 * 以下变量都由 this 的监视器保护
+	 */
+	/** 等待调度的 key，按 load 的顺序 */
+	private LinkedHashMap<KEY, Entry<V>> pending = new LinkedHashMap<>();
+	/** 等待调度 + 正在查询的 key，用来去重 */
+	private final Map<KEY, Entry<V>> loading = new HashMap<>();
+	private HashedWheelTimer.Timeout dispatchTimeout;
+
+	private BatchLoader(Builder<KEY, V> builder) {
+		this.loadFn = builder.loadFn;
+		this.maxBatchSize = builder.maxBatchSize;
+		this.maxDelayMillis = builder.maxDelayMillis;
+		this.timer = builder.timer == null ? HashedWheelTimer.shared() : builder.timer;
+		this.executor = builder.executor == null ? DefaultExecutorHolder.INSTANCE : builder.executor;
+		if (builder.cacheSize > 0) {
+			int cacheSize = builder.cacheSize;
+			this.cache = new LinkedHashMap<KEY, V>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<KEY, V> eldest) {
+					return size() > cacheSize;
+				}
+			};
+		} else {
+			this.cache = null;
+		}
+	}
+
+	/**
+	 *
+	 * @param maxBatchSize 一次批量查询最多多少个不同的 key
+	 * @param loadFn 批量查询方法，返回 key 到值的 map
+	 */
+	public static <KEY, V> Builder<KEY, V> builder(int maxBatchSize, Function<List<KEY>, Map<KEY, V>> loadFn) {
+		return new Builder<>(maxBatchSize, loadFn);
+	}
+
+	private static final class DefaultExecutorHolder {
+		private static final Executor INSTANCE = HashedWheelTimer.newDaemonPool("BatchLoader",
+				Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * 异步读取一个值，不会阻塞
+	 * @param key
+	 * @return 值的句柄，get() 时还没有取回会等待查询完成
+	 */
+	public ValueHolder<V, KEY> load(KEY key) {
+		boolean full = false;
+		Entry<V> entry;
+		synchronized (this) {
+			if (this.cache != null && this.cache.containsKey(key)) {
+				ValueHolder<V, KEY> holder = new ValueHolder<>(k -> load(k).get(), key);
+				holder.setValue(this.cache.get(key));
+				return holder;
+			}
+			entry = this.loading.get(key);
+			if (entry == null) {
+				entry = new Entry<>();
+				this.loading.put(key, entry);
+				this.pending.put(key, entry);
+				if (this.pending.size() >= this.maxBatchSize) {
+					full = true;
+				} else if (this.pending.size() == 1) {
+					this.dispatchTimeout = this.timer.schedule(this::dispatchExpired, this.maxDelayMillis,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		Entry<V> e = entry;
+		ValueHolder<V, KEY> holder = new ValueHolder<>(k -> await(e), key);
+		e.future.thenAccept(holder::setValue);
+		if (full) {
+			dispatchAsync();
+		}
+		return holder;
+	}
+
+	/* 等待所在批次查询完成，查询失败时抛出查询方法的异常 */
+	private V await(Entry<V> entry) {
+		try {
+			return entry.future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/* 交出等待调度的 key，调用时必须持有监视器 */
+	private Map<KEY, Entry<V>> takePending() {
+		if (this.pending.isEmpty()) {
+			return null;
+		}
+		Map<KEY, Entry<V>> batch = this.pending;
+		this.pending = new LinkedHashMap<>();
+		if (this.dispatchTimeout != null) {
+			this.dispatchTimeout.cancel();
+			this.dispatchTimeout = null;
+		}
+		return batch;
+	}
+
+	private void dispatchExpired() {
+		Map<KEY, Entry<V>> batch;
+		synchronized (this) {
+			batch = takePending();
+		}
+		if (batch != null) {
+			execute(batch);
+		}
+	}
+
+	/* 攒够 maxBatchSize 时在 executor 上查询，load 不阻塞 */
+	private void dispatchAsync() {
+		Map<KEY, Entry<V>> batch;
+		synchronized (this) {
+			batch = takePending();
+		}
+		if (batch == null) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> execute(batch));
+		} catch (RejectedExecutionException e) {
+			log.warn("batch load rejected, run in caller thread", e);
+			execute(batch);
+		}
+	}
+
+	private void execute(Map<KEY, Entry<V>> batch) {
+		List<KEY> keys = new ArrayList<>(batch.keySet());
+		Map<KEY, V> values = null;
+		//包括 Error 和偷偷抛出的受检异常，否则 key 会一直留在 loading 中，等待的 future 永远不会完成
+		Throwable failure = null;
+		try {
+			values = this.loadFn.apply(keys);
+			if (this.cache != null) {
+				synchronized (this) {
+					for (Map.Entry<KEY, Entry<V>> e : batch.entrySet()) {
+						//查询期间被 invalidate，查到的可能是旧值，只交给等待的 holder，不缓存；key 可能已经在重新查询
+						if (!e.getValue().invalidated) {
+							this.cache.put(e.getKey(), values == null ? null : values.get(e.getKey()));
+						}
+					}
+				}
+			}
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			synchronized (this) {
+				for (Map.Entry<KEY, Entry<V>> e : batch.entrySet()) {
+					//被 invalidate 的 key 已经移除，可能已经在重新查询
+					if (!e.getValue().invalidated) {
+						this.loading.remove(e.getKey());
+					}
+				}
+			}
+		}
+		//在监视器外完成，回调不会阻塞其他 load
+		for (Map.Entry<KEY, Entry<V>> e : batch.entrySet()) {
+			CompletableFuture<V> future = e.getValue().future;
+			if (failure != null) {
+				future.completeExceptionally(failure);
+				continue;
+			}
+			try {
+				future.complete(values == null ? null : values.get(e.getKey()));
+			} catch (RuntimeException ex) {
+				future.completeExceptionally(ex);
+			}
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * 立即查询所有等待调度的 key
+	 */
+	public void dispatch() {
+		dispatchExpired();
+	}
+
+	/**
+	 * 清除缓存中的一个 key；这个 key 正在查询时，查询结果不会被缓存，之后的 load 会重新查询
+	 * @param key
+	 */
+	public synchronized void invalidate(KEY key) {
+		if (this.cache != null) {
+			this.cache.remove(key);
+		}
+		Entry<V> entry = this.loading.get(key);
+		if (entry != null) {
+			invalidateLoading(key, entry);
+		}
+	}
+
+	/**
+	 * 清空缓存；正在查询的 key 的查询结果都不会被缓存
+	 */
+	public synchronized void invalidateAll() {
+		if (this.cache != null) {
+			this.cache.clear();
+		}
+		if (!this.loading.isEmpty()) {
+			for (Map.Entry<KEY, Entry<V>> e : new ArrayList<>(this.loading.entrySet())) {
+				invalidateLoading(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/*
+	 * 还在等待调度的 key 还没有查询，查到的一定是新值，不用处理；正在查询的标记为失效，
+	 * 并从 loading 中移除，之后的 load 发起新的查询，而不是拿到这次查询的旧值。调用时必须持有监视器
+	 */
+	private void invalidateLoading(KEY key, Entry<V> entry) {
+		if (this.pending.get(key) == entry) {
+			return;
+		}
+		entry.invalidated = true;
+		this.loading.remove(key);
+	}
+
+	/**
+	 * 一个等待查询的 key
+	 */
+	private static final class Entry<V> {
+		private final CompletableFuture<V> future = new CompletableFuture<>();
+		/** 查询期间被 invalidate，由 BatchLoader 的监视器保护 */
+		private boolean invalidated = false;
+	}
+
+	/**
+	 * BatchLoader 构造器
+	 * @param <KEY>
+	 * @param <V>
+	 */
+	public static final class Builder<KEY, V> {
+		private final int maxBatchSize;
+		private final Function<List<KEY>, Map<KEY, V>> loadFn;
+		private long maxDelayMillis = 10;
+		private int cacheSize = 0;
+		private HashedWheelTimer timer;
+		private Executor executor;
+
+		private Builder(int maxBatchSize, Function<List<KEY>, Map<KEY, V>> loadFn) {
+			if (maxBatchSize < 1) {
+				throw new IllegalArgumentException("maxBatchSize must > 0 !");
+			}
+			if (loadFn == null) {
+				throw new IllegalArgumentException("loadFn can't be null!");
+			}
+			this.maxBatchSize = maxBatchSize;
+			this.loadFn = loadFn;
+		}
+
+		/**
+		 * @param maxDelayMillis 调度窗口，第一个 key 最多等待多久被查询，默认10ms
+		 */
+		public Builder<KEY, V> maxDelay(long maxDelayMillis) {
+			if (maxDelayMillis < 0) {
+				throw new IllegalArgumentException("maxDelayMillis must >= 0 !");
+			}
+			this.maxDelayMillis = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * 缓存查询过的值（包括null），按 LRU 淘汰
+		 * @param cacheSize 最多缓存多少个 key
+		 */
+		public Builder<KEY, V> cache(int cacheSize) {
+			if (cacheSize < 1) {
+				throw new IllegalArgumentException("cacheSize must > 0 !");
+			}
+			this.cacheSize = cacheSize;
+			return this;
+		}
+
+		/**
+		 * 调度窗口使用的定时器，不设置时使用进程内共享的 {@link HashedWheelTimer#shared()}，窗口到期的查询在定时器的任务线程上执行
+		 */
+		public Builder<KEY, V> timer(HashedWheelTimer timer) {
+			this.timer = timer;
+			return this;
+		}
+
+		/**
+		 * 攒够 maxBatchSize 时执行查询的线程池，不设置时使用一个进程内共享的守护线程池
+		 */
+		public Builder<KEY, V> executor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		public BatchLoader<KEY, V> build() {
+			return new BatchLoader<>(this);
+		}
+	}
+}
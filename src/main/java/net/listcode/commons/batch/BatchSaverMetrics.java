@@ -0,0 +1,39 @@
+package net.listcode.commons.batch;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 批量保存类的监控回调，在热点路径上被调用，实现必须足够轻量（比如使用 LongAdder），不能加锁
+ * 默认实现见 {@link BatchSaverStats}
+ * @author leo
+ *
+ */
+public interface BatchSaverMetrics {
+
+	/**
+	 * 添加了一条数据
+	 */
+	void recordAdd();
+
+	/**
+	 * 写入了一个批次
+	 * @param batchSize 批次条数
+	 * @param latencyNanos 写入耗时
+	 * @param success 是否写入成功
+	 */
+	void recordFlush(int batchSize, long latencyNanos, boolean success);
+
+	/**
+	 * 有返回值因为超出保留上限而被淘汰（调用方再取就是null了）
+	 * @param n 淘汰的个数
+	 */
+	void recordEvictedReturns(int n);
+
+	/**
+	 * saver 创建时调用，用于绑定只有 saver 自己知道的实时数据
+	 * @param bufferedCount 当前缓冲中待写入的条数
+	 * @param retainedReturnCount 当前保留着等待被取走的返回值个数，没有返回值的 saver 始终是0
+	 */
+	default void bindGauges(LongSupplier bufferedCount, LongSupplier retainedReturnCount) {
+	}
+}
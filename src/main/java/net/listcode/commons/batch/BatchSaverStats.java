@@ -0,0 +1,240 @@
+package net.listcode.commons.batch;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 默认的监控实现，全部使用 LongAdder 计数，直方图按2的幂分桶，记录时没有锁竞争
+ * <p>
+ * 可以直接读取，也可以通过 {@link #registerMBean(String)} 注册到 JMX，一个实例只给一个 saver 使用
+ * @author leo
+ *
+ */
+public class BatchSaverStats implements BatchSaverMetrics, BatchSaverStatsMBean {
+
+	private final LongAdder added = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder failedFlushes = new LongAdder();
+	private final LongAdder evictedReturns = new LongAdder();
+	private final Log2Histogram batchSizes = new Log2Histogram();
+	private final Log2Histogram latencyMicros = new Log2Histogram();
+
+	private volatile LongSupplier bufferedCount = () -> 0;
+	private volatile LongSupplier retainedReturnCount = () -> 0;
+
+	/*
+	 * 计算每秒添加条数用，由 this 的监视器保护
+	 */
+	private long lastAdded = 0;
+	private long lastReadNanos = System.nanoTime();
+
+	@Override
+	public void recordAdd() {
+		this.added.increment();
+	}
+
+	@Override
+	public void recordFlush(int batchSize, long latencyNanos, boolean success) {
+		this.flushes.increment();
+		if (!success) {
+			this.failedFlushes.increment();
+		}
+		this.batchSizes.record(batchSize);
+		this.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+	}
+
+	@Override
+	public void recordEvictedReturns(int n) {
+		this.evictedReturns.add(n);
+	}
+
+	@Override
+	public void bindGauges(LongSupplier bufferedCount, LongSupplier retainedReturnCount) {
+		this.bufferedCount = bufferedCount;
+		this.retainedReturnCount = retainedReturnCount;
+	}
+
+	/**
+	 * 注册到平台 MBeanServer，ObjectName 为 net.listcode.commons.batch:type=BatchSaver,name={name}
+	 * @param name
+	 * @return 注册使用的 ObjectName，用于注销
+	 */
+	public ObjectName registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("net.listcode.commons.batch:type=BatchSaver,name="
+					+ ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("register mbean failed, name=" + name, e);
+		}
+	}
+
+	@Override
+	public long getAddedTotal() {
+		return this.added.sum();
+	}
+
+	@Override
+	public synchronized double getAddedPerSecond() {
+		long now = System.nanoTime();
+		long total = this.added.sum();
+		double rate = (total - this.lastAdded) * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, now - this.lastReadNanos);
+		this.lastAdded = total;
+		this.lastReadNanos = now;
+		return rate;
+	}
+
+	@Override
+	public long getFlushTotal() {
+		return this.flushes.sum();
+	}
+
+	@Override
+	public long getFailedFlushTotal() {
+		return this.failedFlushes.sum();
+	}
+
+	@Override
+	public long getBufferedCount() {
+		return this.bufferedCount.getAsLong();
+	}
+
+	@Override
+	public long getRetainedReturnCount() {
+		return this.retainedReturnCount.getAsLong();
+	}
+
+	@Override
+	public long getEvictedReturnTotal() {
+		return this.evictedReturns.sum();
+	}
+
+	@Override
+	public long getBatchSizeP50() {
+		return this.batchSizes.percentile(0.5);
+	}
+
+	@Override
+	public long getBatchSizeP99() {
+		return this.batchSizes.percentile(0.99);
+	}
+
+	@Override
+	public long getBatchSizeMax() {
+		return this.batchSizes.percentile(1);
+	}
+
+	@Override
+	public long getFlushLatencyMicrosP50() {
+		return this.latencyMicros.percentile(0.5);
+	}
+
+	@Override
+	public long getFlushLatencyMicrosP99() {
+		return this.latencyMicros.percentile(0.99);
+	}
+
+	@Override
+	public long getFlushLatencyMicrosMax() {
+		return this.latencyMicros.percentile(1);
+	}
+
+	@Override
+	public String getBatchSizeHistogram() {
+		return this.batchSizes.toString();
+	}
+
+	@Override
+	public String getFlushLatencyMicrosHistogram() {
+		return this.latencyMicros.toString();
+	}
+
+	@Override
+	public void reset() {
+		this.added.reset();
+		this.flushes.reset();
+		this.failedFlushes.reset();
+		this.evictedReturns.reset();
+		this.batchSizes.reset();
+		this.latencyMicros.reset();
+		synchronized (this) {
+			this.lastAdded = 0;
+			this.lastReadNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * 按2的幂分桶的直方图，第i个桶记录 (2^(i-1), 2^i - 1] 范围的值，0 单独一个桶
+	 */
+	private static final class Log2Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+
+		private Log2Histogram() {
+			for (int i = 0; i < this.buckets.length; i++) {
+				this.buckets[i] = new LongAdder();
+			}
+		}
+
+		private void record(long value) {
+			int i = value <= 0 ? 0 : Math.min(63, 64 - Long.numberOfLeadingZeros(value));
+			this.buckets[i].increment();
+		}
+
+		private static long upperBound(int i) {
+			return i == 0 ? 0 : (1L << i) - 1;
+		}
+
+		/**
+		 * @return 百分位所在桶的上界，没有数据时为0
+		 */
+		private long percentile(double p) {
+			long[] counts = new long[this.buckets.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = this.buckets[i].sum();
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return upperBound(i);
+				}
+			}
+			return upperBound(counts.length - 1);
+		}
+
+		private void reset() {
+			for (LongAdder b : this.buckets) {
+				b.reset();
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < this.buckets.length; i++) {
+				long c = this.buckets[i].sum();
+				if (c > 0) {
+					if (sb.length() > 0) {
+						sb.append(", ");
+					}
+					sb.append("<=").append(upperBound(i)).append(':').append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
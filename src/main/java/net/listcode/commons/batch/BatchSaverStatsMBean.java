@@ -0,0 +1,53 @@
+package net.listcode.commons.batch;
+
+/**
+ * {@link BatchSaverStats} 的 JMX 接口
+ * @author leo
+ *
+ */
+public interface BatchSaverStatsMBean {
+
+	long getAddedTotal();
+
+	/**
+	 * @return 距离上次调用这个方法，平均每秒添加的条数
+	 */
+	double getAddedPerSecond();
+
+	long getFlushTotal();
+
+	long getFailedFlushTotal();
+
+	long getBufferedCount();
+
+	long getRetainedReturnCount();
+
+	long getEvictedReturnTotal();
+
+	long getBatchSizeP50();
+
+	long getBatchSizeP99();
+
+	long getBatchSizeMax();
+
+	long getFlushLatencyMicrosP50();
+
+	long getFlushLatencyMicrosP99();
+
+	long getFlushLatencyMicrosMax();
+
+	/**
+	 * @return 批次大小直方图，按2的幂分桶，比如 "<=1:3, <=128:20"
+	 */
+	String getBatchSizeHistogram();
+
+	/**
+	 * @return 写入耗时（微秒）直方图，按2的幂分桶
+	 */
+	String getFlushLatencyMicrosHistogram();
+
+	/**
+	 * 清零计数和直方图
+	 */
+	void reset();
+}
@@ -0,0 +1,114 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 批次写入失败时的二分重试：把失败的批次分成两半分别重试，只对失败的一半继续二分，直到找出每一条有问题的数据，
+ * 正常的数据仍然被写入。批次中有 k 条有问题的数据时，额外的调用次数是 O(k log n)，而不是逐条重试的 n 次
+ * <p>
+ * 要求写入方法在失败时整批不生效（比如在一个事务中），否则重试会重复写入
+ * @author leo
+ *
+ */
+public final class BisectingRetry {
+
+	private BisectingRetry() {
+	}
+
+	/**
+	 * 二分重试的结果回调
+	 * @param <T>
+	 * @param <R>
+	 */
+	public interface Handler<T, R> {
+		/**
+		 * 一段数据写入成功
+		 * @param offset 这段数据在原批次中的起始位置
+		 * @param returns 写入方法的返回值，和这段数据一一对应，写入方法没有返回值时为null
+		 */
+		void success(int offset, List<R> returns);
+
+		/**
+		 * 一条数据单独写入仍然失败，或者所在的一段数据因为下游不可用写入失败
+		 * @param index 在原批次中的位置
+		 * @param item
+		 * @param e 单独写入这条数据时的异常，或者下游不可用时这段数据的异常
+		 */
+		void failure(int index, T item, RuntimeException e);
+	}
+
+	/**
+	 * 对一个已经整批写入失败的批次做二分重试
+	 * @param failedBatch 写入失败的批次
+	 * @param firstError 整批写入时的异常，批次只有一条数据时直接作为这条数据的异常
+	 * @param fn 写入方法，没有返回值的写入方法返回null即可
+	 * @param handler 结果回调
+	 * @return 重试时调用写入方法的次数
+	 */
+	public static <T, R> int retry(List<T> failedBatch, RuntimeException firstError, Function<List<T>, List<R>> fn,
+								   Handler<T, R> handler) {
+		return retry(failedBatch, firstError, fn, handler, null);
+	}
+
+	/**
+	 * 对一个已经整批写入失败的批次做二分重试，遇到下游不可用的异常时停止二分
+	 * @param failedBatch 写入失败的批次
+	 * @param firstError 整批写入时的异常，批次只有一条数据时直接作为这条数据的异常
+	 * @param fn 写入方法，没有返回值的写入方法返回null即可
+	 * @param handler 结果回调
+	 * @param isOutage 判断异常是不是下游整体不可用（比如连接失败），而不是数据本身的问题；为null时总是二分到底。
+	 *                 一段数据写入失败并且异常是下游不可用时，这段数据不再二分，全部作为失败交给 handler，
+	 *                 避免下游不可用时每个批次都要调用 2n-1 次写入方法
+	 * @return 重试时调用写入方法的次数
+	 */
+	public static <T, R> int retry(List<T> failedBatch, RuntimeException firstError, Function<List<T>, List<R>> fn,
+								   Handler<T, R> handler, Predicate<RuntimeException> isOutage) {
+		return splitFailed(failedBatch, 0, failedBatch.size(), firstError, fn, handler, isOutage);
+	}
+
+	private static <T, R> void failAll(List<T> batch, int from, int to, RuntimeException e, Handler<T, R> handler) {
+		for (int i = from; i < to; i++) {
+			handler.failure(i, batch.get(i), e);
+		}
+	}
+
+	/* [from, to) 已经失败，只有一条时就是这条的问题，下游不可用时整段失败，否则继续二分 */
+	private static <T, R> int splitFailed(List<T> batch, int from, int to, RuntimeException e,
+										  Function<List<T>, List<R>> fn, Handler<T, R> handler,
+										  Predicate<RuntimeException> isOutage) {
+		if (to - from == 1) {
+			handler.failure(from, batch.get(from), e);
+			return 0;
+		}
+		if (isOutage != null && isOutage.test(e)) {
+			failAll(batch, from, to, e, handler);
+			return 0;
+		}
+		int mid = (from + to) >>> 1;
+		return attempt(batch, from, mid, fn, handler, isOutage) + attempt(batch, mid, to, fn, handler, isOutage);
+	}
+
+	private static <T, R> int attempt(List<T> batch, int from, int to, Function<List<T>, List<R>> fn,
+									  Handler<T, R> handler, Predicate<RuntimeException> isOutage) {
+		RuntimeException e = tryOnce(batch, from, to, fn, handler);
+		return e == null ? 1 : 1 + splitFailed(batch, from, to, e, fn, handler, isOutage);
+	}
+
+	/* 写入 [from, to)，成功时回调 handler 并返回null，失败时返回异常 */
+	private static <T, R> RuntimeException tryOnce(List<T> batch, int from, int to, Function<List<T>, List<R>> fn,
+												   Handler<T, R> handler) {
+		//复制一份，写入方法持有或者修改传入的列表不会影响后面的重试
+		List<T> part = new ArrayList<>(batch.subList(from, to));
+		List<R> returns;
+		try {
+			returns = fn.apply(part);
+		} catch (RuntimeException e) {
+			return e;
+		}
+		handler.success(from, returns);
+		return null;
+	}
+}
@@ -0,0 +1,41 @@
+package net.listcode.commons.batch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批次缓冲池，一个固定大小的环形队列，借出时池空了就新建，归还时池满了就丢给 GC
+ * @author leo
+ *
+ * @param <T>
+ */
+final class BufferPool<T> {
+
+	private final ArrayBlockingQueue<BatchLease<T>> ring;
+	private final int bufferCapacity;
+	/** 新建的缓冲数，稳定状态下不再增长 */
+	private final LongAdder allocated = new LongAdder();
+
+	BufferPool(int poolSize, int bufferCapacity) {
+		this.ring = new ArrayBlockingQueue<>(poolSize);
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	BatchLease<T> acquire() {
+		BatchLease<T> lease = this.ring.poll();
+		if (lease == null) {
+			this.allocated.increment();
+			return new BatchLease<>(this.bufferCapacity, this);
+		}
+		lease.reuse();
+		return lease;
+	}
+
+	void recycle(BatchLease<T> lease) {
+		this.ring.offer(lease);
+	}
+
+	long allocated() {
+		return this.allocated.sum();
+	}
+}
@@ -0,0 +1,137 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 合并重复更新的批量保存类，适用于计数器、状态等同一个key在短时间内被反复更新的场景
+ * <p>
+ * 同一个批次中相同key的数据使用 merge 方法合并成一条（比如后写覆盖、累加增量），只有不同key的条数达到 flashSize 才写入，
+ * 批次中数据的顺序是每个key第一次出现的顺序，保证写入顺序是确定的
+ * @author leo
+ *
+ * @param <T> 数据
+ * @param <K> 合并使用的key
+ */
+public class CoalescingBatchSaver<T, K> implements AutoCloseable {
+
+	private final int flashSize;
+	private final Function<T, K> keyFn;
+	private final BinaryOperator<T> mergeFn;
+	private final Consumer<List<T>> consumer;
+	/** 由 this 的监视器保护 */
+	private Map<K, T> pending;
+	/** 攒满待写入的批次，保证按攒满的先后顺序写入 */
+	private final Queue<List<T>> readyBatches = new ConcurrentLinkedQueue<>();
+	/** 串行化写入，只追加数据的生产者不会竞争这把锁 */
+	private final Object flushLock = new Object();
+	/** 被合并掉的数据条数 */
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 *
+	 * @param flashSize 不同key的条数达到这个值时写入
+	 * @param keyFn 取合并使用的key
+	 * @param mergeFn 合并方法，第一个参数是已有的数据，第二个参数是新数据，返回合并后的数据
+	 * @param consumer 批量写入方法
+	 */
+	public CoalescingBatchSaver(int flashSize, Function<T, K> keyFn, BinaryOperator<T> mergeFn,
+								Consumer<List<T>> consumer) {
+		if (flashSize < 1) {
+			throw new IllegalArgumentException("flashSize must > 0 !");
+		}
+		if (keyFn == null || mergeFn == null || consumer == null) {
+			throw new IllegalArgumentException("keyFn, mergeFn, consumer can't be null!");
+		}
+		this.flashSize = flashSize;
+		this.keyFn = keyFn;
+		this.mergeFn = mergeFn;
+		this.consumer = consumer;
+		this.pending = newBuffer();
+	}
+
+	/**
+	 * 后写覆盖的合并方法
+	 */
+	public static <T> BinaryOperator<T> lastWriteWins() {
+		return (oldValue, newValue) -> newValue;
+	}
+
+	public void addAndMayFlush(T item) {
+		K key = this.keyFn.apply(item);
+		boolean full = false;
+		synchronized (this) {
+			T old = this.pending.get(key);
+			if (old == null) {
+				this.pending.put(key, item);
+			} else {
+				this.pending.put(key, this.mergeFn.apply(old, item));
+				this.coalesced.increment();
+			}
+			if (this.pending.size() >= this.flashSize) {
+				handOff();
+				full = true;
+			}
+		}
+		if (full) {
+			write();
+		}
+	}
+
+	/* 调用时必须持有 this 的监视器 */
+	private void handOff() {
+		Map<K, T> temp = this.pending;
+		this.pending = newBuffer();
+		this.readyBatches.offer(new ArrayList<>(temp.values()));
+	}
+
+	private Map<K, T> newBuffer() {
+		return new LinkedHashMap<>(this.flashSize * 4 / 3 + 1);
+	}
+
+	/* 谁拿到写入锁谁按顺序把已经攒满的批次都写完，返回时自己攒满的批次一定已经写入 */
+	private void write() {
+		synchronized (this.flushLock) {
+			List<T> temp;
+			while ((temp = this.readyBatches.poll()) != null) {
+				this.consumer.accept(temp);
+			}
+		}
+	}
+
+	/**
+	 * @return 目前为止被合并掉（没有单独写入）的数据条数
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.sum();
+	}
+
+	/**
+	 * 强制写入
+	 */
+	public void flush() {
+		synchronized (this) {
+			if (this.pending.isEmpty()) {
+				return;
+			}
+			handOff();
+		}
+		write();
+	}
+
+	/**
+	 * 使用 try() {}语法可以自动关闭，特殊情况也可以手动关闭
+	 */
+	@Override
+	public void close() {
+		this.flush();
+	}
+}
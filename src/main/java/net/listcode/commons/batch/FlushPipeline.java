@@ -0,0 +1,238 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 批次异步写入管道，批次按提交顺序在 executor 上串行写入，同时在途（排队+正在写入）的批次数有上限
+ * @author leo
+ *
+ * @param <T>
+ */
+@Slf4j
+final class FlushPipeline<T> {
+
+	private final Executor executor;
+	private final int maxInFlight;
+	private final LazyBatchSaver.BackpressurePolicy policy;
+	private final Consumer<List<T>> writer;
+	private final Consumer<List<T>> dropHandler;
+
+	/*
+	 * 以下变量都由 this 的监视器保护
+	 */
+	private final ArrayDeque<Pending<T>> queue = new ArrayDeque<>();
+	private Pending<T> running;
+	/** 排队 + 正在写入的批次数 */
+	private int inFlight = 0;
+	/** 是否已经有一个 drain 任务提交到 executor */
+	private boolean draining = false;
+
+	FlushPipeline(Executor executor, int maxInFlight, LazyBatchSaver.BackpressurePolicy policy,
+				  Consumer<List<T>> writer, Consumer<List<T>> dropHandler) {
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.policy = policy;
+		this.writer = writer;
+		this.dropHandler = dropHandler;
+	}
+
+	/**
+	 * 提交一个批次，达到在途上限时按 policy 处理；被丢弃的排队批次的 future 以 RejectedExecutionException 完成，
+	 * flushAsync 不会把丢弃的数据当成已经写入
+	 * @param batch
+	 * @throws RejectedExecutionException FAIL_FAST 策略下达到上限
+	 * @throws IllegalStateException BLOCK 策略下等待时被中断，这个批次已经交给 dropHandler
+	 */
+	void submit(List<T> batch) {
+		List<T> dropped = null;
+		Pending<T> droppedPending = null;
+		boolean rejected = false;
+		boolean startDrain = false;
+		synchronized (this) {
+			while (this.inFlight >= this.maxInFlight) {
+				if (this.policy == LazyBatchSaver.BackpressurePolicy.BLOCK) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped = batch;
+						break;
+					}
+				} else if (this.policy == LazyBatchSaver.BackpressurePolicy.DROP_OLDEST) {
+					Pending<T> oldest = pollOldestDroppable();
+					if (oldest == null) {
+						//没有可以丢弃的排队批次（只有正在写入的、回放的批次），只能丢弃新批次
+						dropped = batch;
+					} else {
+						this.inFlight--;
+						droppedPending = oldest;
+						dropped = oldest.batch;
+					}
+					break;
+				} else {
+					rejected = true;
+					break;
+				}
+			}
+			if (!rejected && dropped != batch) {
+				this.queue.addLast(new Pending<>(batch));
+				this.inFlight++;
+				if (!this.draining) {
+					this.draining = true;
+					startDrain = true;
+				}
+			}
+		}
+		if (rejected) {
+			drop(batch);
+			throw new RejectedExecutionException("flush queue is full, maxInFlight=" + this.maxInFlight);
+		}
+		if (dropped != null) {
+			drop(dropped);
+		}
+		if (droppedPending != null) {
+			droppedPending.future.completeExceptionally(new RejectedExecutionException(
+					"batch of " + dropped.size() + " items dropped, maxInFlight=" + this.maxInFlight));
+		}
+		if (dropped == batch && this.policy == LazyBatchSaver.BackpressurePolicy.BLOCK) {
+			throw new IllegalStateException("interrupted while waiting for flush queue");
+		}
+		if (startDrain) {
+			startDrain();
+		}
+	}
+
+	/**
+	 * 提交一个不受在途上限限制、也不会被 DROP_OLDEST 丢弃的批次，用指定的 writer 写入，用于回放溢写的数据：
+	 * 和正常批次在同一个线程上按顺序写入，不会和它们并发调用 consumer
+	 * @param batch
+	 * @param writer
+	 * @return 写入完成时完成，写入失败则异常完成
+	 */
+	CompletableFuture<Void> submitUnbounded(List<T> batch, Consumer<List<T>> writer) {
+		Pending<T> p = new Pending<>(batch, writer);
+		boolean startDrain = false;
+		synchronized (this) {
+			this.queue.addLast(p);
+			this.inFlight++;
+			if (!this.draining) {
+				this.draining = true;
+				startDrain = true;
+			}
+		}
+		if (startDrain) {
+			startDrain();
+		}
+		return p.future;
+	}
+
+	/* 调用时必须持有 this 的监视器 */
+	private Pending<T> pollOldestDroppable() {
+		Iterator<Pending<T>> it = this.queue.iterator();
+		while (it.hasNext()) {
+			Pending<T> p = it.next();
+			if (p.writer == null) {
+				it.remove();
+				return p;
+			}
+		}
+		return null;
+	}
+
+	private void startDrain() {
+		try {
+			this.executor.execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			//executor 已经关闭时退化为在当前线程写入，保证数据不丢
+			log.warn("flush executor rejected, write in caller thread", e);
+			drain();
+		}
+	}
+
+	private void drop(List<T> batch) {
+		log.warn("flush queue is full, drop a batch of {} items", batch.size());
+		if (this.dropHandler != null) {
+			try {
+				this.dropHandler.accept(batch);
+			} catch (Exception e) {
+				log.warn(e.getMessage(), e);
+			}
+		}
+	}
+
+	private void drain() {
+		for (;;) {
+			Pending<T> p;
+			synchronized (this) {
+				p = this.queue.pollFirst();
+				this.running = p;
+				if (p == null) {
+					this.draining = false;
+					return;
+				}
+			}
+			try {
+				(p.writer == null ? this.writer : p.writer).accept(p.batch);
+				p.future.complete(null);
+			} catch (Throwable e) {
+				log.warn(e.getMessage(), e);
+				p.future.completeExceptionally(e);
+			}
+			synchronized (this) {
+				this.running = null;
+				this.inFlight--;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return 排队和正在写入的条数
+	 */
+	synchronized long pendingItems() {
+		long n = this.running == null ? 0 : this.running.batch.size();
+		for (Pending<T> p : this.queue) {
+			n += p.batch.size();
+		}
+		return n;
+	}
+
+	/**
+	 * @return 当前所有在途批次都写入完成时完成，任一批次写入失败则异常完成
+	 */
+	synchronized CompletableFuture<Void> whenAllWritten() {
+		List<CompletableFuture<Void>> list = new ArrayList<>(this.inFlight);
+		if (this.running != null) {
+			list.add(this.running.future);
+		}
+		for (Pending<T> p : this.queue) {
+			list.add(p.future);
+		}
+		return CompletableFuture.allOf(list.toArray(new CompletableFuture[0]));
+	}
+
+	private static final class Pending<T> {
+		private final List<T> batch;
+		/** 不为null时用它写入，并且不会被丢弃 */
+		private final Consumer<List<T>> writer;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		private Pending(List<T> batch) {
+			this(batch, null);
+		}
+
+		private Pending(List<T> batch, Consumer<List<T>> writer) {
+			this.batch = batch;
+			this.writer = writer;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package net.listcode.commons.batch;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 批量保存类的全局登记表，供 TimeBatchSaveTask 定期把长时间没有攒满的数据写入
+ * <p>
+ * LazyBatchSaver 和 LazyBatchSaverWithReturn 创建时自动登记到 {@link #global()}，close 时注销；
+ * 登记表只持有 saver 的弱引用，忘记 close 的 saver 也可以被回收，回收后自动从登记表中清除
+ * <p>
+ * 每次 {@link #flushIdle(long)} 只写入有待写入数据、并且最近一段时间没有写入过批次的 saver，
+ * 写入在一个固定大小的线程池中并行执行，一个写得慢的 saver 不会拖慢其他 saver；
+ * 上一次还没写完的 saver 这次跳过，不会在同一个 saver 上堆积写入
+ * @author leo
+ *
+ */
+@Slf4j
+public final class FlushRegistry {
+
+	private final Executor executor;
+	private final Set<Registration<?>> registrations = ConcurrentHashMap.newKeySet();
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+	/**
+	 *
+	 * @param maxParallelism 最多同时写入多少个 saver
+	 */
+	public FlushRegistry(int maxParallelism) {
+		if (maxParallelism < 1) {
+			throw new IllegalArgumentException("maxParallelism must > 0 !");
+		}
+		this.executor = HashedWheelTimer.newDaemonPool("FlushRegistry", maxParallelism);
+	}
+
+	/**
+	 * 进程内全局的登记表，saver 默认登记在这里
+	 */
+	public static FlushRegistry global() {
+		return GlobalHolder.INSTANCE;
+	}
+
+	private static final class GlobalHolder {
+		private static final FlushRegistry INSTANCE = new FlushRegistry(
+				Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * 登记一个 saver，两个方法都不能持有 saver 本身（使用 LazyBatchSaver::flush 这样的方法引用），否则 saver 不会被回收
+	 * @param saver
+	 * @param pendingFn 待写入的条数
+	 * @param flushFn 强制写入方法，需要线程安全
+	 * @return 登记，saver 自己写入批次时调用 {@link Registration#markFlushed()}，关闭时调用 {@link Registration#unregister()}
+	 */
+	public <S> Registration<S> register(S saver, ToLongFunction<S> pendingFn, Consumer<S> flushFn) {
+		if (saver == null || pendingFn == null || flushFn == null) {
+			throw new IllegalArgumentException("saver, pendingFn, flushFn can't be null!");
+		}
+		expunge();
+		Registration<S> r = new Registration<>(this, saver, pendingFn, flushFn);
+		this.registrations.add(r);
+		return r;
+	}
+
+	/**
+	 * @return 登记着的、还没有被回收的 saver 数
+	 */
+	public int size() {
+		expunge();
+		return this.registrations.size();
+	}
+
+	/**
+	 * 并行写入有待写入数据、并且至少 idleMillis 没有写入过批次的 saver，正在被上一次调用写入的 saver 跳过
+	 * @param idleMillis
+	 * @return 这次写入的 saver 全部写完后完成，值是写入的 saver 数；写入失败只记录日志，不会异常完成
+	 */
+	public CompletableFuture<Integer> flushIdle(long idleMillis) {
+		return flush(TimeUnit.MILLISECONDS.toNanos(idleMillis), false);
+	}
+
+	/**
+	 * 并行写入所有有待写入数据的 saver，正在写入的 saver 也会再写入一次，用于关闭前的最后写入
+	 * @return 全部写完后完成，值是写入的 saver 数
+	 */
+	public CompletableFuture<Integer> flushAll() {
+		return flush(0, true);
+	}
+
+	private CompletableFuture<Integer> flush(long idleNanos, boolean force) {
+		Collection<CompletableFuture<Void>> futures = flushEach(idleNanos, force, this.executor, Collections.emptySet()).values();
+		int n = futures.size();
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[n])).thenApply(v -> n);
+	}
+
+	/**
+	 * 并行写入，返回每个被写入的 saver 的描述（类名@identityHashCode）和它的写入结果，ShutdownCoordinator 用来报告没有写完的 saver
+	 * @param executor 执行写入的线程池，ShutdownCoordinator 传入自己的线程池，不受 maxParallelism 限制
+	 * @param exclude 跳过的 saver（按引用比较），ShutdownCoordinator 传入同时会被它 close 的 saver
+	 */
+	Map<String, CompletableFuture<Void>> flushEach(long idleNanos, boolean force, Executor executor,
+												   Set<?> exclude) {
+		expunge();
+		long now = System.nanoTime();
+		Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+		for (Registration<?> r : this.registrations) {
+			if (!force && (now - r.lastFlushNanos < idleNanos || r.flushing.get() > 0)) {
+				continue;
+			}
+			if (exclude.contains(r.get())) {
+				continue;
+			}
+			String name = r.describe();
+			if (name != null && r.hasPending()) {
+				futures.put(name, submit(r, executor));
+			}
+		}
+		return futures;
+	}
+
+	private CompletableFuture<Void> submit(Registration<?> r, Executor executor) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		r.flushing.incrementAndGet();
+		Runnable task = () -> {
+			try {
+				//排队期间 saver 已经被 close 注销（close 自己会写入）时跳过
+				if (this.registrations.contains(r)) {
+					r.flush();
+				}
+			} catch (RuntimeException e) {
+				log.warn("timed flush failed", e);
+			} finally {
+				r.flushing.decrementAndGet();
+				future.complete(null);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			log.warn("timed flush rejected, run in caller thread", e);
+			task.run();
+		}
+		return future;
+	}
+
+	/* 清除已经被回收的 saver */
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = this.collected.poll()) != null) {
+			this.registrations.remove(ref);
+		}
+	}
+
+	/**
+	 * 一个 saver 的登记，弱引用 saver
+	 * @param <S>
+	 */
+	public static final class Registration<S> extends WeakReference<S> {
+		private final FlushRegistry registry;
+		private final ToLongFunction<S> pendingFn;
+		private final Consumer<S> flushFn;
+		/** 最近一次写入批次的时间，System.nanoTime() */
+		private volatile long lastFlushNanos = System.nanoTime();
+		/** 正在执行的写入数 */
+		private final AtomicInteger flushing = new AtomicInteger(0);
+
+		private Registration(FlushRegistry registry, S saver, ToLongFunction<S> pendingFn, Consumer<S> flushFn) {
+			super(saver, registry.collected);
+			this.registry = registry;
+			this.pendingFn = pendingFn;
+			this.flushFn = flushFn;
+		}
+
+		/**
+		 * saver 交出一个批次时调用，最近写入过的 saver 不会被定时写入
+		 */
+		public void markFlushed() {
+			this.lastFlushNanos = System.nanoTime();
+		}
+
+		/**
+		 * 从登记表中移除
+		 */
+		public void unregister() {
+			this.registry.registrations.remove(this);
+			this.clear();
+		}
+
+		/* saver 已经被回收时返回null */
+		private String describe() {
+			S saver = get();
+			return saver == null ? null
+					: saver.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(saver));
+		}
+
+		private boolean hasPending() {
+			S saver = get();
+			return saver != null && this.pendingFn.applyAsLong(saver) > 0;
+		}
+
+		private void flush() {
+			S saver = get();
+			if (saver != null) {
+				this.flushFn.accept(saver);
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package net.listcode.commons.batch;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 哈希时间轮定时器，任意多个定时任务共用一个 tick 线程，精度为一个 tick
+ * <p>
+ * 没有待执行任务时 tick 线程会一直等待，不会空转；到期的任务交给 taskExecutor 执行，
+ * 不要求任务本身很快返回（不设置 taskExecutor 时在 tick 线程上执行，此时任务必须很快返回）
+ * @author leo
+ *
+ */
+@Slf4j
+public final class HashedWheelTimer {
+
+	private static final AtomicInteger THREAD_NO = new AtomicInteger(0);
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Executor taskExecutor;
+	private final Thread worker;
+	private final long startTime;
+
+	/** 新添加的任务，由 tick 线程转移到时间轮上 */
+	private final Queue<Timeout> pendingAdds = new ConcurrentLinkedQueue<>();
+	/** 时间轮上 + 待转移的任务数 */
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final Object idleLock = new Object();
+	private volatile boolean idle = false;
+	private volatile boolean stopped = false;
+
+	/*
+	 * 只被 tick 线程访问
+	 */
+	private long tick = 0;
+
+	/**
+	 *
+	 * @param name tick 线程名
+	 * @param tickMillis 每个 tick 的毫秒数，也是定时精度
+	 * @param wheelSize 时间轮的槽数，会被调整为2的幂
+	 * @param taskExecutor 执行到期任务的线程池，null 表示在 tick 线程上执行
+	 */
+	public HashedWheelTimer(String name, long tickMillis, int wheelSize, Executor taskExecutor) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis must > 0 !");
+		}
+		if (wheelSize < 1) {
+			throw new IllegalArgumentException("wheelSize must > 0 !");
+		}
+		int n = 1;
+		while (n < wheelSize) {
+			n <<= 1;
+		}
+		this.wheel = new Bucket[n];
+		for (int i = 0; i < n; i++) {
+			this.wheel[i] = new Bucket();
+		}
+		this.mask = n - 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.taskExecutor = taskExecutor;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this::work, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * 进程内共享的定时器，tick 为10ms，到期任务在一个空闲时会自动回收线程的小线程池中执行
+	 */
+	public static HashedWheelTimer shared() {
+		return SharedHolder.INSTANCE;
+	}
+
+	private static final class SharedHolder {
+		private static final HashedWheelTimer INSTANCE = new HashedWheelTimer("HashedWheelTimer-shared", 10, 512,
+				newDaemonPool("HashedWheelTimer-task", Math.max(2, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * 创建一个守护线程池，空闲60s后线程会被回收
+	 */
+	static ThreadPoolExecutor newDaemonPool(String namePrefix, int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, namePrefix + "-" + THREAD_NO.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * 添加一个延迟执行的任务
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return 可以用来取消任务
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null) {
+			throw new IllegalArgumentException("task can't be null!");
+		}
+		if (this.stopped) {
+			throw new IllegalStateException("timer is stopped");
+		}
+		Timeout t = new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+		this.size.incrementAndGet();
+		this.pendingAdds.add(t);
+		if (this.idle) {
+			synchronized (this.idleLock) {
+				this.idleLock.notifyAll();
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * @return 还没有到期、也没有被清理的任务数
+	 */
+	public int size() {
+		return this.size.get();
+	}
+
+	/**
+	 * 停止 tick 线程，未到期的任务不再执行
+	 */
+	public void stop() {
+		this.stopped = true;
+		synchronized (this.idleLock) {
+			this.idleLock.notifyAll();
+		}
+		LockSupport.unpark(this.worker);
+	}
+
+	private void work() {
+		while (!this.stopped) {
+			if (this.size.get() == 0 && !waitForTask()) {
+				return;
+			}
+			long deadline = this.startTime + (this.tick + 1) * this.tickNanos;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0 && !this.stopped) {
+				LockSupport.parkNanos(this, sleep);
+			}
+			transferPending();
+			expire(this.wheel[(int) (this.tick & this.mask)]);
+			this.tick++;
+		}
+	}
+
+	/*
+	 * 没有任务时一直等待，醒来后把 tick 快进到当前时间，返回false表示定时器已经停止
+	 */
+	private boolean waitForTask() {
+		synchronized (this.idleLock) {
+			this.idle = true;
+			try {
+				while (this.pendingAdds.isEmpty() && !this.stopped) {
+					this.idleLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				this.idle = false;
+			}
+		}
+		this.tick = Math.max(this.tick, (System.nanoTime() - this.startTime) / this.tickNanos);
+		return !this.stopped;
+	}
+
+	private void transferPending() {
+		Timeout t;
+		while ((t = this.pendingAdds.poll()) != null) {
+			if (t.state.get() == Timeout.CANCELLED) {
+				this.size.decrementAndGet();
+				continue;
+			}
+			long calculated = (t.deadline - this.startTime) / this.tickNanos;
+			t.remainingRounds = (calculated - this.tick) / this.wheel.length;
+			long ticks = Math.max(calculated, this.tick);
+			this.wheel[(int) (ticks & this.mask)].add(t);
+		}
+	}
+
+	private void expire(Bucket bucket) {
+		Timeout t = bucket.head;
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.state.get() == Timeout.CANCELLED) {
+				bucket.remove(t);
+				this.size.decrementAndGet();
+			} else if (t.remainingRounds <= 0) {
+				bucket.remove(t);
+				this.size.decrementAndGet();
+				if (t.state.compareAndSet(Timeout.INIT, Timeout.EXPIRED)) {
+					run(t.task);
+				}
+			} else {
+				t.remainingRounds--;
+			}
+			t = next;
+		}
+	}
+
+	private void run(Runnable task) {
+		if (this.taskExecutor != null) {
+			try {
+				this.taskExecutor.execute(() -> runQuietly(task));
+				return;
+			} catch (RejectedExecutionException e) {
+				log.warn("timer task rejected, run in tick thread", e);
+			}
+		}
+		runQuietly(task);
+	}
+
+	private static void runQuietly(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 一个定时任务的句柄
+	 */
+	public static final class Timeout {
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(INIT);
+
+		/*
+		 * 只被 tick 线程访问
+		 */
+		private long remainingRounds;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * 取消任务，O(1)，被取消的任务在到期时从时间轮上移除
+		 * @return false 表示任务已经执行或者已经被取消
+		 */
+		public boolean cancel() {
+			return this.state.compareAndSet(INIT, CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return this.state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return this.state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * 时间轮的一个槽，双向链表，只被 tick 线程访问
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout t) {
+			t.prev = this.tail;
+			t.next = null;
+			if (this.tail == null) {
+				this.head = t;
+			} else {
+				this.tail.next = t;
+			}
+			this.tail = t;
+		}
+
+		private void remove(Timeout t) {
+			if (t.prev == null) {
+				this.head = t.next;
+			} else {
+				t.prev.next = t.next;
+			}
+			if (t.next == null) {
+				this.tail = t.prev;
+			} else {
+				t.next.prev = t.prev;
+			}
+			t.prev = null;
+			t.next = null;
+		}
+	}
+}
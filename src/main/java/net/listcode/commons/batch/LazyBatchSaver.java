@@ -2,55 +2,854 @@ package net.listcode.commons.batch;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import lombok.extern.slf4j.Slf4j;
+import net.listcode.commons.Fn;
 
 /**
  * 批量保存某些数据的通用类，适用于单个添加低效，多个添加高效的场景
+ * <p>
+ * 数据先追加到条带（stripe）缓冲区中，生产者之间只在各自的条带上竞争，攒满的批次在条带锁外写入，
+ * 写入较慢时不会阻塞其他只追加数据的生产者
+ * <p>
+ * 开启异步写入（见 {@link Builder#asyncFlush(int, BackpressurePolicy)}）后，攒满的批次交给独立的写入线程，
+ * 生产者线程不再承担写入耗时，只在在途批次达到上限时按背压策略处理
+ * <p>
+ * 设置 {@link Builder#maxLinger(long)} 后，批次攒满或者最早的一条数据等待超过 maxLinger 时写入，以先到者为准；
+ * 所有 saver 共用一个时间轮定时器，没有数据的 saver 不占用线程，也不需要轮询
+ * <p>
+ * 设置 {@link Builder#adaptiveFlashSize(int, int, long)} 后，批次大小会根据每次写入的耗时在给定范围内自动调整，
+ * 当前生效的大小可以通过 {@link #getEffectiveFlashSize()} 获取
+ * <p>
+ * 设置 {@link Builder#maxBatchWeight(ToLongFunction, long)} 后，批次条数或者总重量（比如字节数）任一达到上限就写入，
+ * 单条数据超过重量上限时单独成为一个批次
+ * <p>
+ * 设置 {@link Builder#spill(SpillLog, long)} 后，写入失败和被背压丢弃的批次会溢写到本地磁盘，
+ * 之后定期回放，下游恢复（或者进程重启）后补写，生产者既不会收到异常也不会被阻塞
+ * <p>
+ * 使用 {@link #leasedBuilder(int, Consumer, int)} 创建时，批次缓冲从一个小的缓冲池中借出，写入方收到的是 {@link BatchLease}，
+ * 写完后 release 归还，稳定状态下攒批次不再分配新的数组
+ * <p>
+ * 设置 {@link Builder#metrics(BatchSaverMetrics)} 后，添加和写入会上报到监控回调，比如 {@link BatchSaverStats}
+ * <p>
+ * 创建时自动登记到 {@link FlushRegistry}（弱引用），TimeBatchSaveTask 会定期写入长时间没有攒满的数据
  * @author leo
  *
  * @param <T>
  */
+@Slf4j
 public class LazyBatchSaver<T> implements AutoCloseable {
 
+	/**
+	 * 异步写入时，在途批次达到上限的处理策略
+	 */
+	public enum BackpressurePolicy {
+		/**
+		 * 1. 阻塞生产者，直到有批次写入完成
+		 */
+		BLOCK,
+		/**
+		 * 2. 丢弃最早排队的批次（正在写入的批次不会被丢弃，此时丢弃新批次），被丢弃的批次交给 dropHandler
+		 */
+		DROP_OLDEST,
+		/**
+		 * 3. 抛出 RejectedExecutionException，被拒绝的批次交给 dropHandler
+		 */
+		FAIL_FAST;
+	}
+
+	private static final AtomicInteger FLUSH_THREAD_NO = new AtomicInteger(0);
+
 	private final int flashSize;
 	private final Consumer<List<T>> consumer;
-	private List<T> list;
+	private final Stripe<T>[] stripes;
+	/** 单条带模式下攒满待写入的批次，保证按攒满的先后顺序写入 */
+	private final Queue<List<T>> readyBatches = new ConcurrentLinkedQueue<>();
+	/** 单条带模式下串行化写入，只追加数据的生产者不会竞争这把锁 */
+	private final Object flushLock = new Object();
+	/** 异步写入管道，同步模式为null */
+	private final FlushPipeline<T> pipeline;
+	/** 自己创建的写入线程，close 时关闭；使用外部 executor 时为null */
+	private final ExecutorService ownExecutor;
+	/** 最早的一条数据最多等待多久被写入，0表示不限制 */
+	private final long maxLingerMillis;
+	/** maxLinger 和溢写回放使用的定时器，都不需要时为null */
+	private final HashedWheelTimer timer;
+	/** 写入失败时的溢写日志，不溢写时为null */
+	private final SpillLog<T> spillLog;
+	private final long spillRetryMillis;
+	/** 是否已经安排了溢写回放 */
+	private final AtomicBoolean replayScheduled = new AtomicBoolean(false);
+	/** 不带溢写的写入方法，用于回放 */
+	private final Consumer<List<T>> directConsumer;
+	/** 批次缓冲池，不复用缓冲时为null */
+	private final BufferPool<T> pool;
+	/** 监控回调，不监控时为null */
+	private final BatchSaverMetrics metrics;
+	/** 自适应批次大小，固定大小时为null */
+	private final AdaptiveBatchSize adaptive;
+	/** 单条数据的重量，不限制重量时为null */
+	private final ToLongFunction<T> weigher;
+	private final long maxBatchWeight;
+	/**
+	 * 在 FlushRegistry 中的登记，定时写入任务据此写入长时间没有攒满的数据；
+	 * 在构造方法的最后赋值，登记之后、赋值之前其他线程已经可以看到 this，交出批次时为null
+	 */
+	private volatile FlushRegistry.Registration<LazyBatchSaver<T>> registration;
 
 	public LazyBatchSaver(int flashSize, Consumer<List<T>> consumer) {
-		this.flashSize = flashSize;
-		this.consumer = consumer;
-		clearTempCache();
+		this(flashSize, consumer, 1);
+	}
+
+	/**
+	 *
+	 * @param flashSize
+	 * @param consumer
+	 * @param stripes 条带数，多个生产者线程高并发写入时可以设置为接近生产者线程数，
+	 *                大于1时不同条带的批次可能被并发写入，consumer 需要线程安全，批次之间也不保证顺序
+	 */
+	public LazyBatchSaver(int flashSize, Consumer<List<T>> consumer, int stripes) {
+		this(new Builder<>(flashSize, consumer).stripes(stripes));
 	}
 
-	public synchronized void addAndMayFlush(T item) {
-		this.list.add(item);
-		if (this.list.size() >= this.flashSize) {
-			List<T> temp = this.list;
-			clearTempCache();
-			this.consumer.accept(temp);
+	@SuppressWarnings("unchecked")
+	private LazyBatchSaver(Builder<T> builder) {
+		this.flashSize = builder.flashSize;
+		this.metrics = builder.metrics;
+		if (builder.adaptiveMin > 0) {
+			this.adaptive = new AdaptiveBatchSize(builder.flashSize, builder.adaptiveMin, builder.adaptiveMax,
+					builder.targetLatencyMillis);
+		} else {
+			this.adaptive = null;
+		}
+		if (this.adaptive != null || this.metrics != null) {
+			this.directConsumer = timed(builder.consumer, this.adaptive, this.metrics);
+		} else {
+			this.directConsumer = builder.consumer;
+		}
+		this.spillLog = builder.spillLog;
+		this.spillRetryMillis = builder.spillRetryMillis;
+		this.consumer = this.spillLog == null ? this.directConsumer : this::writeOrSpill;
+		this.weigher = builder.weigher;
+		this.maxBatchWeight = builder.maxBatchWeight;
+		this.maxLingerMillis = builder.maxLingerMillis;
+		if ((builder.maxLingerMillis > 0 || builder.spillLog != null) && builder.timer == null) {
+			this.timer = HashedWheelTimer.shared();
+		} else {
+			this.timer = builder.timer;
+		}
+		this.pool = builder.poolSize > 0 ? new BufferPool<>(builder.poolSize, builder.flashSize) : null;
+		this.stripes = new Stripe[builder.stripes];
+		for (int i = 0; i < builder.stripes; i++) {
+			this.stripes[i] = new Stripe<>(newBuffer());
+		}
+		if (builder.maxInFlight > 0) {
+			Executor executor = builder.executor;
+			if (executor == null) {
+				this.ownExecutor = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "LazyBatchSaver-flush-" + FLUSH_THREAD_NO.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+				executor = this.ownExecutor;
+			} else {
+				this.ownExecutor = null;
+			}
+			Consumer<List<T>> dropHandler = builder.dropHandler;
+			if (dropHandler == null && this.spillLog != null) {
+				dropHandler = this.spillLog::append;
+			}
+			this.pipeline = new FlushPipeline<>(executor, builder.maxInFlight, builder.policy,
+					this.consumer, dropHandler);
+		} else {
+			this.pipeline = null;
+			this.ownExecutor = null;
+		}
+		if (this.spillLog != null && !this.spillLog.isEmpty()) {
+			//上次进程没有回放完的数据
+			scheduleReplay(0);
 		}
+		if (this.metrics != null) {
+			this.metrics.bindGauges(this::getBufferedCount, () -> 0);
+		}
+		this.registration = builder.flushRegistry.register(this, LazyBatchSaver::getBufferedCount,
+				LazyBatchSaver::flush);
 	}
-	
-	private void clearTempCache() {
-		this.list = new ArrayList<>(this.flashSize);
+
+	public static <T> Builder<T> builder(int flashSize, Consumer<List<T>> consumer) {
+		return new Builder<>(flashSize, consumer);
 	}
-	
+
 	/**
-	 * 强制写入
+	 * 复用批次缓冲的构造器，consumer 写完（可以是异步写完）后必须调用 {@link BatchLease#release()} 归还缓冲，
+	 * 抛出异常时不能已经 release；多条带时 flush 不再合并各条带的数据
+	 * @param flashSize
+	 * @param consumer
+	 * @param poolSize 缓冲池大小，一般是 条带数 + 最多在途批次数 + 1
+	 */
+	public static <T> Builder<T> leasedBuilder(int flashSize, Consumer<BatchLease<T>> consumer, int poolSize) {
+		if (consumer == null) {
+			throw new IllegalArgumentException("consumer can't be null!");
+		}
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("poolSize must > 0 !");
+		}
+		Builder<T> builder = new Builder<>(flashSize, batch -> consumer.accept(asLease(batch)));
+		builder.poolSize = poolSize;
+		return builder;
+	}
+
+	/* 池中借出的批次直接使用，其他批次（比如溢写回放的）包装成不归还的 lease */
+	private static <T> BatchLease<T> asLease(List<T> batch) {
+		if (batch instanceof BatchLease) {
+			return (BatchLease<T>) batch;
+		}
+		return new BatchLease<>(batch);
+	}
+
+	public void addAndMayFlush(T item) {
+		if (this.metrics != null) {
+			this.metrics.recordAdd();
+		}
+		long weight = this.weigher == null ? 0 : this.weigher.applyAsLong(item);
+		List<T> before = null;
+		List<T> full = null;
+		Stripe<T> stripe = lockStripe();
+		try {
+			if (this.weigher != null && !stripe.list.isEmpty() && stripe.weight + weight > this.maxBatchWeight) {
+				//加上这条会超重，先把已有的数据换出
+				before = handOff(stripe);
+			}
+			stripe.list.add(item);
+			stripe.weight += weight;
+			if (stripe.list.size() >= currentFlashSize()
+					|| (this.weigher != null && stripe.weight >= this.maxBatchWeight)) {
+				full = handOff(stripe);
+			} else if (stripe.list.size() == 1 && this.maxLingerMillis > 0) {
+				scheduleLinger(stripe);
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (before != null) {
+			write(stripe, before);
+		}
+		if (full != null) {
+			write(stripe, full);
+		}
+	}
+
+	/* 调用时必须持有条带锁，条带中来了第一条数据，开始计时 */
+	private void scheduleLinger(Stripe<T> stripe) {
+		final long epoch = stripe.epoch;
+		stripe.lingerTimeout = this.timer.schedule(() -> lingerExpired(stripe, epoch),
+				this.maxLingerMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/* 最早的一条数据等待超时，如果期间条带没有被换出过，写入这个条带 */
+	private void lingerExpired(Stripe<T> stripe, long epoch) {
+		List<T> full = null;
+		stripe.lock.lock();
+		try {
+			if (stripe.epoch == epoch && !stripe.list.isEmpty()) {
+				full = handOff(stripe);
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (full != null) {
+			write(stripe, full);
+		}
+	}
+
+	/*
+	 * 从当前线程对应的条带开始探测，CAS（tryLock）抢到哪个条带就用哪个，全部被占用时才在自己的条带上排队
 	 */
-	public synchronized void flush() {
-		if (!this.list.isEmpty()) {
-			List<T> temp = this.list;
-			clearTempCache();
-			this.consumer.accept(temp);
+	private Stripe<T> lockStripe() {
+		int n = this.stripes.length;
+		int h = probe();
+		for (int i = 0; i < n; i++) {
+			Stripe<T> s = this.stripes[(h + i) % n];
+			if (s.lock.tryLock()) {
+				return s;
+			}
 		}
+		Stripe<T> s = this.stripes[h % n];
+		s.lock.lock();
+		return s;
+	}
+
+	private static int probe() {
+		long id = Thread.currentThread().getId();
+		return (int) ((id ^ (id >>> 16)) * 0x9E3779B9L >>> 1) & Integer.MAX_VALUE;
+	}
+
+	/*
+	 * 调用时必须持有条带锁，换出条带中的批次，返回需要在锁外用 write(stripe, batch) 写入的批次。
+	 * 异步模式在锁内按换出顺序放入条带的 handedOff 队列，锁外提交给写入管道时保证同一条带的批次顺序，
+	 * BLOCK 策略等待在途批次时不会占着条带锁
+	 */
+	private List<T> handOff(Stripe<T> stripe) {
+		List<T> temp = swap(stripe);
+		if (this.pipeline != null) {
+			stripe.handedOff.offer(temp);
+		} else if (this.stripes.length == 1) {
+			this.readyBatches.offer(temp);
+		}
+		return temp;
+	}
+
+	/* 调用时必须持有条带锁，换出条带中的批次，同时取消等待超时的计时 */
+	private List<T> swap(Stripe<T> stripe) {
+		List<T> temp = stripe.list;
+		stripe.list = newBuffer();
+		stripe.weight = 0;
+		stripe.epoch++;
+		FlushRegistry.Registration<LazyBatchSaver<T>> r = this.registration;
+		if (r != null) {
+			r.markFlushed();
+		}
+		if (stripe.lingerTimeout != null) {
+			stripe.lingerTimeout.cancel();
+			stripe.lingerTimeout = null;
+		}
+		return temp;
+	}
+
+	private List<T> newBuffer() {
+		if (this.pool != null) {
+			return this.pool.acquire();
+		}
+		return new ArrayList<>(currentFlashSize());
+	}
+
+	/**
+	 * @return 缓冲池模式下一共新建过多少个批次缓冲，稳定状态下不再增长；不复用缓冲时返回-1
+	 */
+	public long getAllocatedBuffers() {
+		return this.pool == null ? -1 : this.pool.allocated();
+	}
+
+	private int currentFlashSize() {
+		return this.adaptive == null ? this.flashSize : this.adaptive.current();
+	}
+
+	/* 包装 consumer，记录每次写入的耗时，用于调整批次大小和上报监控 */
+	private static <T> Consumer<List<T>> timed(Consumer<List<T>> consumer, AdaptiveBatchSize adaptive,
+			BatchSaverMetrics metrics) {
+		return batch -> {
+			int size = batch.size();
+			long start = System.nanoTime();
+			boolean success = false;
+			try {
+				consumer.accept(batch);
+				success = true;
+			} finally {
+				long cost = System.nanoTime() - start;
+				if (adaptive != null) {
+					adaptive.record(size, cost, success);
+				}
+				if (metrics != null) {
+					metrics.recordFlush(size, cost, success);
+				}
+			}
+		};
 	}
 
 	/**
-	 * 使用 try() {}语法可以自动关闭，特殊情况也可以手动关闭
+	 * @return 当前缓冲中（包括异步模式下排队和正在写入的批次）还没有写入的条数，不加锁读取，是一个近似值
+	 */
+	public long getBufferedCount() {
+		long n = 0;
+		for (Stripe<T> stripe : this.stripes) {
+			n += stripe.list.size();
+			for (List<T> batch : stripe.handedOff) {
+				n += batch.size();
+			}
+		}
+		if (this.pipeline != null) {
+			n += this.pipeline.pendingItems();
+		}
+		return n;
+	}
+
+	/* 写入失败时溢写到磁盘，稍后回放 */
+	private void writeOrSpill(List<T> batch) {
+		try {
+			this.directConsumer.accept(batch);
+		} catch (RuntimeException e) {
+			try {
+				this.spillLog.append(batch);
+			} catch (RuntimeException e2) {
+				e.addSuppressed(e2);
+				throw e;
+			}
+			log.warn("write failed, spill " + batch.size() + " items to disk", e);
+			scheduleReplay(this.spillRetryMillis);
+		}
+	}
+
+	private void scheduleReplay(long delayMillis) {
+		if (this.replayScheduled.compareAndSet(false, true)) {
+			this.timer.schedule(this::replaySpill, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/* 在定时器的任务线程上回放，失败或者回放期间又有新的溢写时，稍后再次回放 */
+	private void replaySpill() {
+		this.replayScheduled.set(false);
+		try {
+			int n = this.spillLog.replay(this::writeReplayed, currentFlashSize());
+			if (n > 0) {
+				log.info("replayed {} spilled items", n);
+			}
+		} catch (RuntimeException e) {
+			log.warn("replay spill failed, retry after " + this.spillRetryMillis + "ms", e);
+		}
+		if (!this.spillLog.isEmpty()) {
+			scheduleReplay(this.spillRetryMillis);
+		}
+	}
+
+	/*
+	 * 回放的批次和正常批次走同一条写入路径，不会并发调用 consumer：异步模式提交给写入管道（不受在途上限限制，不会被丢弃）并等待写完，
+	 * 同步模式持有写入锁写入；写入失败时抛出异常，这一段溢写数据留到下次回放
+	 */
+	private void writeReplayed(List<T> batch) {
+		if (this.pipeline == null) {
+			synchronized (this.flushLock) {
+				this.directConsumer.accept(batch);
+			}
+			return;
+		}
+		try {
+			this.pipeline.submitUnbounded(batch, this.directConsumer).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return 当前生效的批次大小，固定大小时就是 flashSize
+	 */
+	public int getEffectiveFlashSize() {
+		return currentFlashSize();
+	}
+
+	/**
+	 * @return 自适应模式下写入耗时的移动平均（毫秒），固定大小时返回-1
+	 */
+	public long getAvgFlushLatencyMillis() {
+		return this.adaptive == null ? -1 : this.adaptive.avgLatencyMillis();
+	}
+
+	/**
+	 * @return 自适应模式下写入吞吐的移动平均（条/秒），固定大小时返回-1
+	 */
+	public long getAvgFlushThroughput() {
+		return this.adaptive == null ? -1 : this.adaptive.avgThroughput();
+	}
+
+	/* 写入 handOff 换出的批次，调用时不能持有条带锁 */
+	private void write(Stripe<T> stripe, List<T> batch) {
+		if (this.pipeline == null) {
+			write(batch);
+		} else {
+			submitHandedOff(stripe);
+		}
+	}
+
+	private void submitHandedOff(Stripe<T> stripe) {
+		//谁拿到提交锁谁按顺序把条带已经换出的批次都提交，返回时自己换出的批次一定已经提交（或者被拒绝、丢弃）
+		RuntimeException error = null;
+		stripe.submitLock.lock();
+		try {
+			List<T> temp;
+			while ((temp = stripe.handedOff.poll()) != null) {
+				try {
+					this.pipeline.submit(temp);
+				} catch (RuntimeException e) {
+					//被拒绝的批次已经交给 dropHandler，继续提交后面的批次
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+		} finally {
+			stripe.submitLock.unlock();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void write(List<T> batch) {
+		if (this.pipeline != null) {
+			this.pipeline.submit(batch);
+			return;
+		}
+		if (this.stripes.length > 1) {
+			this.consumer.accept(batch);
+			return;
+		}
+		//单条带模式，谁拿到写入锁谁按顺序把已经攒满的批次都写完，返回时自己攒满的批次一定已经写入
+		synchronized (this.flushLock) {
+			List<T> temp;
+			while ((temp = this.readyBatches.poll()) != null) {
+				this.consumer.accept(temp);
+			}
+		}
+	}
+
+	/**
+	 * 强制写入，多个条带中的数据会合并后按当前批次大小分批写入；
+	 * 异步模式下会等待所有在途批次写入完成，写入失败时抛出 CompletionException
+	 */
+	public void flush() {
+		if (this.pipeline != null) {
+			this.flushAsync().join();
+			return;
+		}
+		drainStripes();
+	}
+
+	/**
+	 * 异步强制写入
+	 * @return 调用前已经添加的数据全部写入后完成，任一批次写入失败则异常完成；同步模式下返回时已经写入
+	 */
+	public CompletableFuture<Void> flushAsync() {
+		if (this.pipeline == null) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			try {
+				drainStripes();
+				future.complete(null);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+		try {
+			drainStripes();
+		} catch (RuntimeException e) {
+			//FAIL_FAST 拒绝
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		return this.pipeline.whenAllWritten();
+	}
+
+	private void drainStripes() {
+		if (this.pipeline != null) {
+			//其他线程已经换出、还没来得及提交的批次先提交，whenAllWritten 才会等待它们
+			for (Stripe<T> stripe : this.stripes) {
+				if (!stripe.handedOff.isEmpty()) {
+					submitHandedOff(stripe);
+				}
+			}
+		}
+		if (this.stripes.length == 1 || this.pool != null) {
+			//单条带，或者缓冲池模式（借出的缓冲不能合并），逐个条带写入
+			for (Stripe<T> stripe : this.stripes) {
+				List<T> temp = null;
+				stripe.lock.lock();
+				try {
+					if (!stripe.list.isEmpty()) {
+						temp = handOff(stripe);
+					}
+				} finally {
+					stripe.lock.unlock();
+				}
+				if (temp != null) {
+					write(stripe, temp);
+				}
+			}
+			return;
+		}
+
+		List<T> all = new ArrayList<>();
+		for (Stripe<T> stripe : this.stripes) {
+			stripe.lock.lock();
+			try {
+				if (!stripe.list.isEmpty()) {
+					all.addAll(swap(stripe));
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		for (List<T> subList : split(all)) {
+			write(subList);
+		}
+	}
+
+	/* 按条数和重量拆分合并后的数据 */
+	private List<List<T>> split(List<T> all) {
+		int size = currentFlashSize();
+		if (this.weigher == null) {
+			return Fn.split(all, size);
+		}
+		List<List<T>> ll = new ArrayList<>();
+		int from = 0;
+		long weight = 0;
+		for (int i = 0; i < all.size(); i++) {
+			long w = this.weigher.applyAsLong(all.get(i));
+			if (i > from && (i - from >= size || weight + w > this.maxBatchWeight)) {
+				ll.add(all.subList(from, i));
+				from = i;
+				weight = 0;
+			}
+			weight += w;
+		}
+		if (from < all.size()) {
+			ll.add(all.subList(from, all.size()));
+		}
+		return ll;
+	}
+
+	/**
+	 * 使用 try() {}语法可以自动关闭，特殊情况也可以手动关闭；异步模式下会等待所有批次写入完成
 	 */
 	@Override
-	public synchronized void close() {
-		this.flush();
+	public void close() {
+		this.registration.unregister();
+		try {
+			this.flush();
+		} finally {
+			shutdownOwnExecutor();
+		}
+	}
+
+	/**
+	 * 异步关闭
+	 * @return 所有批次写入完成后完成，之后自己创建的写入线程会被关闭
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		this.registration.unregister();
+		CompletableFuture<Void> future = this.flushAsync();
+		future.whenComplete((v, e) -> shutdownOwnExecutor());
+		return future;
+	}
+
+	private void shutdownOwnExecutor() {
+		if (this.ownExecutor != null) {
+			this.ownExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * LazyBatchSaver 构造器
+	 * @param <T>
+	 */
+	public static final class Builder<T> {
+		private final int flashSize;
+		private final Consumer<List<T>> consumer;
+		private int stripes = 1;
+		private int maxInFlight = 0;
+		private BackpressurePolicy policy = BackpressurePolicy.BLOCK;
+		private Executor executor;
+		private Consumer<List<T>> dropHandler;
+		private long maxLingerMillis = 0;
+		private HashedWheelTimer timer;
+		private SpillLog<T> spillLog;
+		private long spillRetryMillis = 0;
+		private int poolSize = 0;
+		private BatchSaverMetrics metrics;
+		private int adaptiveMin = 0;
+		private int adaptiveMax = 0;
+		private long targetLatencyMillis = 0;
+		private ToLongFunction<T> weigher;
+		private long maxBatchWeight = 0;
+		private FlushRegistry flushRegistry = FlushRegistry.global();
+
+		private Builder(int flashSize, Consumer<List<T>> consumer) {
+			if (flashSize < 1) {
+				throw new IllegalArgumentException("flashSize must > 0 !");
+			}
+			if (consumer == null) {
+				throw new IllegalArgumentException("consumer can't be null!");
+			}
+			this.flashSize = flashSize;
+			this.consumer = consumer;
+		}
+
+		/**
+		 * @param stripes 条带数，多个生产者线程高并发写入时可以设置为接近生产者线程数，
+		 *                同步模式下大于1时不同条带的批次可能被并发写入，consumer 需要线程安全，批次之间也不保证顺序
+		 */
+		public Builder<T> stripes(int stripes) {
+			if (stripes < 1) {
+				throw new IllegalArgumentException("stripes must > 0 !");
+			}
+			this.stripes = stripes;
+			return this;
+		}
+
+		/**
+		 * 开启异步写入，攒满的批次交给写入线程串行写入，不再占用生产者线程
+		 * @param maxInFlight 最多在途（排队+正在写入）的批次数
+		 * @param policy 达到 maxInFlight 时的处理策略
+		 */
+		public Builder<T> asyncFlush(int maxInFlight, BackpressurePolicy policy) {
+			if (maxInFlight < 1) {
+				throw new IllegalArgumentException("maxInFlight must > 0 !");
+			}
+			if (policy == null) {
+				throw new IllegalArgumentException("policy can't be null!");
+			}
+			this.maxInFlight = maxInFlight;
+			this.policy = policy;
+			return this;
+		}
+
+		/**
+		 * 异步写入使用的 executor，不设置时每个 saver 创建一个守护线程，close 时关闭；
+		 * 外部传入的 executor 不会被关闭
+		 */
+		public Builder<T> flushExecutor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * DROP_OLDEST、FAIL_FAST 策略下被丢弃的批次的处理方法，比如记录日志或者写到本地文件
+		 */
+		public Builder<T> dropHandler(Consumer<List<T>> dropHandler) {
+			this.dropHandler = dropHandler;
+			return this;
+		}
+
+		/**
+		 * @param maxLingerMillis 最早的一条数据最多等待多久被写入，0表示不限制（只在攒满或者 flush 时写入）
+		 */
+		public Builder<T> maxLinger(long maxLingerMillis) {
+			if (maxLingerMillis < 0) {
+				throw new IllegalArgumentException("maxLingerMillis must >= 0 !");
+			}
+			this.maxLingerMillis = maxLingerMillis;
+			return this;
+		}
+
+		/**
+		 * maxLinger 和溢写回放使用的定时器，不设置时使用进程内共享的 {@link HashedWheelTimer#shared()}
+		 */
+		public Builder<T> timer(HashedWheelTimer timer) {
+			this.timer = timer;
+			return this;
+		}
+
+		/**
+		 * 写入失败、被背压丢弃（没有设置 dropHandler 时）的批次溢写到 spillLog，每隔 retryIntervalMillis 尝试回放，
+		 * 回放的顺序是溢写的顺序，但和正常写入的批次之间不保证顺序；spillLog 由调用方关闭
+		 * @param spillLog
+		 * @param retryIntervalMillis
+		 */
+		public Builder<T> spill(SpillLog<T> spillLog, long retryIntervalMillis) {
+			if (spillLog == null) {
+				throw new IllegalArgumentException("spillLog can't be null!");
+			}
+			if (retryIntervalMillis < 1) {
+				throw new IllegalArgumentException("retryIntervalMillis must > 0 !");
+			}
+			this.spillLog = spillLog;
+			this.spillRetryMillis = retryIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * 开启自适应批次大小，flashSize 作为初始大小；每次写入耗时不超过目标值时增大批次，超过时减半
+		 * @param min 最小批次
+		 * @param max 最大批次
+		 * @param targetLatencyMillis 单次写入的目标耗时
+		 */
+		public Builder<T> adaptiveFlashSize(int min, int max, long targetLatencyMillis) {
+			if (min < 1 || max < min) {
+				throw new IllegalArgumentException("must 0 < min <= max !");
+			}
+			if (targetLatencyMillis < 1) {
+				throw new IllegalArgumentException("targetLatencyMillis must > 0 !");
+			}
+			this.adaptiveMin = min;
+			this.adaptiveMax = max;
+			this.targetLatencyMillis = targetLatencyMillis;
+			return this;
+		}
+
+		/**
+		 * 限制批次的总重量，条数或者重量任一达到上限就写入，单条数据超过上限时单独写入
+		 * @param weigher 单条数据的重量，比如估算的字节数
+		 * @param maxBatchWeight 批次的最大总重量，比如 db 的 max_allowed_packet
+		 */
+		public Builder<T> maxBatchWeight(ToLongFunction<T> weigher, long maxBatchWeight) {
+			if (weigher == null) {
+				throw new IllegalArgumentException("weigher can't be null!");
+			}
+			if (maxBatchWeight < 1) {
+				throw new IllegalArgumentException("maxBatchWeight must > 0 !");
+			}
+			this.weigher = weigher;
+			this.maxBatchWeight = maxBatchWeight;
+			return this;
+		}
+
+		/**
+		 * 监控回调，比如 {@link BatchSaverStats}
+		 */
+		public Builder<T> metrics(BatchSaverMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * 登记到哪个 FlushRegistry，不设置时登记到 {@link FlushRegistry#global()}
+		 */
+		public Builder<T> flushRegistry(FlushRegistry flushRegistry) {
+			if (flushRegistry == null) {
+				throw new IllegalArgumentException("flushRegistry can't be null!");
+			}
+			this.flushRegistry = flushRegistry;
+			return this;
+		}
+
+		public LazyBatchSaver<T> build() {
+			return new LazyBatchSaver<>(this);
+		}
+	}
+
+	/**
+	 * 一个条带，list 只在持有 lock 时读写
+	 */
+	private static final class Stripe<T> {
+		private final ReentrantLock lock = new ReentrantLock();
+		/** 异步模式下已经换出、还没有提交给写入管道的批次，只在持有 lock 时放入 */
+		private final Queue<List<T>> handedOff = new ConcurrentLinkedQueue<>();
+		/** 异步模式下按顺序把 handedOff 提交给写入管道 */
+		private final ReentrantLock submitLock = new ReentrantLock();
+		private List<T> list;
+		/** list 中数据的总重量 */
+		private long weight = 0;
+		/** 每换出一次批次加1，用来判断等待超时的计时是否还属于当前批次 */
+		private long epoch = 0;
+		private HashedWheelTimer.Timeout lingerTimeout;
+
+		private Stripe(List<T> list) {
+			this.list = list;
+		}
 	}
 }
@@ -1,11 +1,27 @@
 package net.listcode.commons.batch;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * 批量保存某些数据的通用类，适用于单个添加低效，多个添加高效的场景
@@ -13,20 +29,95 @@ import java.util.function.Function;
  * 针对超出的值，可以提供一个从低速存储（可能是db）中拿到值得suplier 函数
  * 使用这个工具需要注意，不能老add不get，否则可能会被自动删除，
  * 如果不需要get的场景，务必使用单参数的add，get尽量保证被调用，并且及时被调用
+ * <p>
+ * 待写入的数据和保留的返回值都按添加顺序放在 LinkedHashMap 中，ignore、取走返回值、淘汰最早的返回值都是 O(1) 的
+ * <p>
+ * 攒满的批次在监视器外写入，写入期间生产者继续往新的缓冲中添加数据；function 的调用是串行的，按攒满的先后顺序。
+ * getAndRemove 强制求值时，同一时间最多只有一个强制写入，读取同一批次中 key 的其他线程等待这次写入完成，不会各自触发写入
+ * <p>
+ * 也可以使用 {@link #addAsync(Object)}，直接拿到一个在所在批次写入后完成的 CompletableFuture，不需要保留返回值，也不会被淘汰
+ * <p>
+ * 保留的返回值除了个数上限，还可以通过 builder 限制保留时长（TTL）和总重量，被淘汰的返回值交给淘汰回调，
+ * 比如写到低速存储，之后从低速存储中取；过期的返回值在访问时顺带清理，另外由共享的定时器定期清理，不需要逐个扫描
+ * <p>
+ * 默认写入失败时整批数据丢失，异常抛给触发写入的线程；设置 {@link Builder#bisectOnFailure(BiConsumer)} 后，
+ * 失败的批次会被二分重试（{@link BisectingRetry}），正常的数据照常写入、返回值照常保留，有问题的数据交给死信回调；
+ * 可以同时设置判断下游不可用的条件，下游不可用时不再二分
+ * <p>
+ * 通过 {@link #builder(int, Function, int)} 可以设置更多选项，比如按重量限制批次大小、监控回调
+ * <p>
+ * 创建时自动登记到 {@link FlushRegistry}（弱引用），TimeBatchSaveTask 会定期写入长时间没有攒满的数据
  * @author leo
  *
  * @param <DATA, KEY, RETURN>
  */
+@Slf4j
 public class LazyBatchSaverWithReturn<DATA, KEY, RETURN> implements AutoCloseable {
 
 	private final int flashSize;
 	private final int holdReturnValueMaxNum;
 	private final Function<List<DATA>, List<RETURN>> function;
-	private List<KEY> list;
+	/** 单条数据的重量，不限制重量时为null */
+	private final ToLongFunction<DATA> weigher;
+	private final long maxBatchWeight;
+	/** 写入完成后保留下来复用的缓冲，pending 是内部使用的，总是复用；数据列表只在 recycleBuffers 时复用 */
+	private final boolean recycleBuffers;
+	/** 监控回调，不监控时为null */
+	private final BatchSaverMetrics metrics;
+	/** 返回值的保留时长，0表示不限制 */
+	private final long retainTtlNanos;
+	/** 返回值的重量，不限制保留的总重量时为null */
+	private final ToLongFunction<RETURN> returnWeigher;
+	private final long maxRetainedWeight;
+	/** 返回值被淘汰（超出个数、重量、过期）时的回调，可以为null */
+	private final BiConsumer<KEY, RETURN> evictionListener;
+	/** 二分重试后仍然写入失败的数据的回调，为null时不重试 */
+	private final BiConsumer<DATA, RuntimeException> deadLetter;
+	/** 判断写入异常是不是下游不可用，是的话失败的数据不再二分，为null时总是二分到底 */
+	private final Predicate<RuntimeException> outage;
+	/** 清理过期返回值的定时器，不限制保留时长时为null */
+	private final HashedWheelTimer timer;
+	/**
+	 * 在 FlushRegistry 中的登记，定时写入任务据此写入长时间没有攒满的数据；
+	 * 在构造方法的最后赋值，登记之后、赋值之前其他线程已经可以看到 this，交出批次时为null
+	 */
+	private volatile FlushRegistry.Registration<LazyBatchSaverWithReturn<DATA, KEY, RETURN>> registration;
+
+	/*
+	 * 以下变量都由 this 的监视器保护
+	 */
+	/** 待写入数据（pending + simpleList + asyncList）的总重量 */
+	private long pendingWeight = 0;
+	/** 带key的待写入数据，按添加顺序 */
+	private LinkedHashMap<KEY, DATA> pending;
 	private List<DATA> simpleList;
-	private Map<KEY, DATA> dataMap = new HashMap<>();
-	private Map<KEY, RETURN> returnMap = new HashMap<>();
-	private LinkedList<KEY> returnKey = new LinkedList<>();
+	/** addAsync 添加的数据和对应的 future，一一对应 */
+	private List<DATA> asyncList = new ArrayList<>();
+	private List<CompletableFuture<RETURN>> asyncFutures = new ArrayList<>();
+	private LinkedHashMap<KEY, DATA> sparePending;
+	private List<DATA> spareSimpleList;
+	/** 已经交出、返回值还没有发布的批次，最早的在前 */
+	private final ArrayDeque<Batch<DATA, KEY, RETURN>> inFlight = new ArrayDeque<>();
+	/** 保留的返回值，按写入顺序，最早写入的在前，超出数量、重量或者过期时从头部淘汰 */
+	private final LinkedHashMap<KEY, Retained<KEY, RETURN>> returnMap = new LinkedHashMap<>();
+	private volatile long retainedWeight = 0;
+	/*
+	 * 以下两个计数只在持有监视器时更新，监控指标不加锁读取
+	 */
+	/** pendingCount() 的值 */
+	private volatile int bufferedCount = 0;
+	/** returnMap 的大小 */
+	private volatile int retainedCount = 0;
+	/** 已经淘汰、还没有交给淘汰回调的返回值，在监视器外回调 */
+	private List<Retained<KEY, RETURN>> evictedList = new ArrayList<>();
+	private boolean cleanerScheduled = false;
+
+	/** 等待写入的批次，保证按交出的先后顺序写入 */
+	private final Queue<Batch<DATA, KEY, RETURN>> readyBatches = new ConcurrentLinkedQueue<>();
+	/** 串行化写入，只追加数据的生产者不会竞争这把锁 */
+	private final Object flushLock = new Object();
+	/** 由 flushLock 保护 */
+	private List<DATA> spareDataList;
 	
 	/**
 	 * 
@@ -35,136 +126,847 @@ public class LazyBatchSaverWithReturn<DATA, KEY, RETURN> implements AutoCloseabl
 	 * @param holdReturnValueMaxNum 需要取返回值时，这个参数表示最多缓存多少个返回值，
 	 */
 	public LazyBatchSaverWithReturn(int flashSize, Function<List<DATA>, List<RETURN>> consumer, int holdReturnValueMaxNum) {
-		this.flashSize = flashSize;
-		this.function = consumer;
-		this.holdReturnValueMaxNum = holdReturnValueMaxNum;
-		this.list = clearAndInitList1();
-		this.simpleList = clearAndInitList2();
+		this(new Builder<>(flashSize, consumer, holdReturnValueMaxNum));
 	}
 
-	public synchronized void addAndMayFlush(KEY signKey, DATA item) {
-		this.list.add(signKey);
-		this.dataMap.put(signKey, item);
-		if (this.list.size() + this.simpleList.size() >= this.flashSize) {
-			this.flushAll();
+	private LazyBatchSaverWithReturn(Builder<DATA, KEY, RETURN> builder) {
+		this.flashSize = builder.flashSize;
+		this.function = builder.function;
+		this.holdReturnValueMaxNum = builder.holdReturnValueMaxNum;
+		this.weigher = builder.weigher;
+		this.maxBatchWeight = builder.maxBatchWeight;
+		this.recycleBuffers = builder.recycleBuffers;
+		this.metrics = builder.metrics;
+		this.retainTtlNanos = builder.retainTtlNanos;
+		this.returnWeigher = builder.returnWeigher;
+		this.maxRetainedWeight = builder.maxRetainedWeight;
+		this.evictionListener = builder.evictionListener;
+		this.deadLetter = builder.deadLetter;
+		this.outage = builder.outage;
+		if (this.retainTtlNanos > 0) {
+			this.timer = builder.timer == null ? HashedWheelTimer.shared() : builder.timer;
+		} else {
+			this.timer = null;
+		}
+		this.pending = initPending();
+		this.simpleList = initSimpleList();
+		if (this.metrics != null) {
+			this.metrics.bindGauges(this::getBufferedCount, this::getRetainedReturnCount);
 		}
+		this.registration = builder.flushRegistry.register(this, LazyBatchSaverWithReturn::getBufferedCount,
+				LazyBatchSaverWithReturn::flushAll);
 	}
-	
-	private List<KEY> clearAndInitList1() {
-		return new ArrayList<>(this.flashSize);
+
+	public static <DATA, KEY, RETURN> Builder<DATA, KEY, RETURN> builder(int flashSize,
+			Function<List<DATA>, List<RETURN>> consumer, int holdReturnValueMaxNum) {
+		return new Builder<>(flashSize, consumer, holdReturnValueMaxNum);
 	}
-	
-	private List<DATA> clearAndInitList2() {
-		return new ArrayList<>(this.flashSize);
+
+	public void addAndMayFlush(KEY signKey, DATA item) {
+		Batch<DATA, KEY, RETURN> overweight;
+		Batch<DATA, KEY, RETURN> full;
+		synchronized (this) {
+			long weight = weigh(item);
+			overweight = beforeAdd(weight);
+			this.pending.put(signKey, item);
+			full = afterAdd(weight);
+		}
+		write(overweight);
+		write(full);
 	}
-	
-	
+
 	/**
-	 * 不需要被hold时使用
+	 * 添加一条需要返回值的数据，返回值通过 future 异步获取，不占用返回值的保留名额
 	 * @param item
+	 * @return 所在批次写入后完成，写入失败时异常完成；回调在写入线程（或者调用 flush 的线程）上执行，耗时操作请使用 *Async 方法
 	 */
-	public synchronized void addAndMayFlush(DATA item) {
-		this.simpleList.add(item);
-		
-		if (this.list.size() + this.simpleList.size() >= this.flashSize) {
-			this.flushAll();
+	public CompletableFuture<RETURN> addAsync(DATA item) {
+		CompletableFuture<RETURN> future = new CompletableFuture<>();
+		Batch<DATA, KEY, RETURN> overweight;
+		Batch<DATA, KEY, RETURN> full;
+		synchronized (this) {
+			long weight = weigh(item);
+			overweight = beforeAdd(weight);
+			this.asyncList.add(item);
+			this.asyncFutures.add(future);
+			full = afterAdd(weight);
 		}
+		write(overweight);
+		write(full);
+		return future;
 	}
 	
 	/**
-	 * 使用带key参数的add方法添加，但又确定不会调用getAndRemove
-	 * @param signKey
+	 * 不需要被hold时使用
+	 * @param item
 	 */
-	public synchronized void ignore(KEY signKey) {
-		if (this.returnMap.containsKey(signKey)) {
-			//1 已经求值完成的情况
-			this.returnKey.remove(signKey);
-			this.returnMap.remove(signKey);
-		} else if (this.dataMap.containsKey(signKey)) {
-			//2 将要求值的 但目前未求值的情况， 转移到简单list中
-			this.list.remove(signKey);
-			DATA data = this.dataMap.remove(signKey);
-			this.simpleList.add(data);
+	public void addAndMayFlush(DATA item) {
+		Batch<DATA, KEY, RETURN> overweight;
+		Batch<DATA, KEY, RETURN> full;
+		synchronized (this) {
+			long weight = weigh(item);
+			overweight = beforeAdd(weight);
+			this.simpleList.add(item);
+			full = afterAdd(weight);
+		}
+		write(overweight);
+		write(full);
+	}
+
+	private int pendingCount() {
+		return this.pending.size() + this.simpleList.size() + this.asyncList.size();
+	}
+
+	/* 调用时必须持有监视器 */
+	private long weigh(DATA item) {
+		if (this.metrics != null) {
+			this.metrics.recordAdd();
+		}
+		return this.weigher == null ? 0 : this.weigher.applyAsLong(item);
+	}
+
+	/* 加上这条会超重时，先把已有的数据交出去 */
+	private Batch<DATA, KEY, RETURN> beforeAdd(long weight) {
+		if (this.weigher != null && pendingCount() > 0 && this.pendingWeight + weight > this.maxBatchWeight) {
+			return handOff();
+		}
+		return null;
+	}
+
+	private Batch<DATA, KEY, RETURN> afterAdd(long weight) {
+		this.pendingWeight += weight;
+		if (pendingCount() >= this.flashSize
+				|| (this.weigher != null && this.pendingWeight >= this.maxBatchWeight)) {
+			return handOff();
 		}
+		this.bufferedCount = pendingCount();
+		return null;
 	}
 	
-	public synchronized void flushAll() {
-		if (!this.list.isEmpty()){
-			List<KEY> tempKeyList = this.list;
-			this.list = this.clearAndInitList1();
-			List<DATA> tempDatalist = new ArrayList<>(tempKeyList.size());
-			for (KEY key : tempKeyList) {
-				DATA data = this.dataMap.remove(key);
-				tempDatalist.add(data);
-			}
-			//被求值，返回的是真实值
-			List<RETURN> rList = this.function.apply(tempDatalist);
-			
-			for (int i = 0; i < tempKeyList.size(); i++) {
-				this.returnKey.addLast(tempKeyList.get(i));
-				returnMap.put(tempKeyList.get(i), rList.get(i));
-			}
-			//收缩
-			while (this.returnKey.size() > this.holdReturnValueMaxNum) {
-				KEY key = this.returnKey.removeFirst();
-				returnMap.remove(key);
-			}
-		}
-		
-		//2. simple list
-		if (!this.simpleList.isEmpty()) {
-			List<DATA> tempSList = this.simpleList;
-			this.simpleList = this.clearAndInitList2();
-			this.function.apply(tempSList);
+	private LinkedHashMap<KEY, DATA> initPending() {
+		LinkedHashMap<KEY, DATA> spare = this.sparePending;
+		if (spare != null) {
+			this.sparePending = null;
+			return spare;
+		}
+		return new LinkedHashMap<>(this.flashSize * 4 / 3 + 1);
+	}
+	
+	private List<DATA> initSimpleList() {
+		List<DATA> spare = this.spareSimpleList;
+		if (spare != null) {
+			this.spareSimpleList = null;
+			return spare;
+		}
+		return new ArrayList<>(this.flashSize);
+	}
+
+	/* 调用时必须持有 flushLock */
+	private List<DATA> initDataList() {
+		List<DATA> spare = this.spareDataList;
+		if (spare != null) {
+			this.spareDataList = null;
+			return spare;
 		}
+		return new ArrayList<>(this.flashSize);
 	}
 	
 	/**
-	 * 立即获取真实值，如果没有被求值，立即求值并返回
+	 * 使用带key参数的add方法添加，但又确定不会调用getAndRemove
 	 * @param signKey
-	 * @return
 	 */
-	public synchronized RETURN getAndRemove(KEY signKey) {
-		if (this.returnMap.containsKey(signKey)) {
-			return this.returnMap.remove(signKey);
-		} else if (this.dataMap.containsKey(signKey)) {
-			return forceGetAndRemove(signKey);
+	public void ignore(KEY signKey) {
+		synchronized (this) {
+			if (hasReturn(signKey)) {
+				//1 已经求值完成的情况
+				claim(signKey);
+			} else if (this.pending.containsKey(signKey)) {
+				//2 将要求值的 但目前未求值的情况， 转移到简单list中
+				DATA data = this.pending.remove(signKey);
+				this.simpleList.add(data);
+			} else {
+				//3 正在写入的情况，写入后不保留返回值
+				Batch<DATA, KEY, RETURN> batch = findInFlight(signKey);
+				if (batch != null) {
+					batch.ignore(signKey);
+				}
+			}
+		}
+		notifyEvicted();
+	}
+
+	/**
+	 * 强制写入，返回时之前添加的数据都已经写入
+	 */
+	public void flushAll() {
+		Batch<DATA, KEY, RETURN> own;
+		synchronized (this) {
+			own = pendingCount() > 0 ? handOff() : null;
+		}
+		if (own != null) {
+			write(own);
 		} else {
-			return null;
+			//没有新数据，等其他线程交出的批次写完
+			drain();
+		}
+	}
+
+	/* 把当前缓冲交出去等待写入，调用时必须持有监视器 */
+	private Batch<DATA, KEY, RETURN> handOff() {
+		Batch<DATA, KEY, RETURN> batch = new Batch<>(this.pending, this.asyncList, this.asyncFutures, this.simpleList);
+		this.pending = initPending();
+		//空的列表不交出去，继续使用
+		if (this.simpleList.isEmpty()) {
+			batch.simple = Collections.emptyList();
+		} else {
+			this.simpleList = initSimpleList();
+		}
+		if (this.asyncList.isEmpty()) {
+			batch.asyncData = Collections.emptyList();
+			batch.futures = Collections.emptyList();
+		} else {
+			this.asyncList = new ArrayList<>();
+			this.asyncFutures = new ArrayList<>();
+		}
+		this.pendingWeight = 0;
+		this.bufferedCount = 0;
+		FlushRegistry.Registration<LazyBatchSaverWithReturn<DATA, KEY, RETURN>> r = this.registration;
+		if (r != null) {
+			r.markFlushed();
+		}
+		this.inFlight.addLast(batch);
+		this.readyBatches.offer(batch);
+		return batch;
+	}
+
+	/* 写入所有等待中的批次，own 所在批次写入失败时抛出异常 */
+	private void write(Batch<DATA, KEY, RETURN> own) {
+		if (own == null) {
+			return;
+		}
+		drain();
+		if (own.failure != null) {
+			throw own.failure;
+		}
+	}
+
+	/*
+	 * 谁拿到写入锁谁按顺序把等待中的批次都写完，返回时之前交出的批次一定已经写入并发布了返回值；
+	 * future 和淘汰回调在释放写入锁之后再执行，避免回调（比如把返回值写到低速存储）阻塞后面的写入和强制求值。
+	 * function 抛出 Error 时也会完成已经取出的批次的 future，再把 Error 抛给调用者
+	 */
+	private void drain() {
+		List<Batch<DATA, KEY, RETURN>> written = null;
+		try {
+			synchronized (this.flushLock) {
+				Batch<DATA, KEY, RETURN> batch;
+				while ((batch = this.readyBatches.poll()) != null) {
+					if (written == null) {
+						written = new ArrayList<>(2);
+					}
+					written.add(batch);
+					writeBatch(batch);
+				}
+			}
+		} finally {
+			if (written != null) {
+				notifyEvicted();
+				for (Batch<DATA, KEY, RETURN> batch : written) {
+					notifyDeadLetters(batch);
+					batch.complete();
+				}
+			}
+		}
+	}
+
+	/* 调用时必须持有 flushLock */
+	private void writeBatch(Batch<DATA, KEY, RETURN> batch) {
+		List<DATA> tempDatalist = null;
+		try {
+			if (!batch.keyed.isEmpty() || !batch.asyncData.isEmpty()) {
+				//addAsync 的数据和带key的数据一起写入，function 只调用一次
+				tempDatalist = initDataList();
+				tempDatalist.addAll(batch.keyed.values());
+				tempDatalist.addAll(batch.asyncData);
+				//被求值，返回的是真实值
+				batch.returns = applyOrBisect(tempDatalist, batch, true);
+			}
+			//2. simple list
+			if (!batch.simple.isEmpty()) {
+				applyOrBisect(batch.simple, batch, false);
+			}
+		} catch (RuntimeException e) {
+			batch.failure = e;
+		} catch (Error e) {
+			//批次按失败发布，future 异常完成，Error 继续抛出
+			batch.failure = new IllegalStateException("batch write failed", e);
+			throw e;
+		} finally {
+			if (tempDatalist != null && this.recycleBuffers) {
+				tempDatalist.clear();
+				this.spareDataList = tempDatalist;
+			}
+			publish(batch);
+		}
+	}
+
+	/* 保留写入成功的返回值，回收缓冲 */
+	private synchronized void publish(Batch<DATA, KEY, RETURN> batch) {
+		if (batch.failure == null && batch.returns != null) {
+			long expireAt = this.retainTtlNanos > 0 ? System.nanoTime() + this.retainTtlNanos : 0;
+			int i = 0;
+			for (KEY key : batch.keyed.keySet()) {
+				boolean failed = batch.itemFailures != null && batch.itemFailures[i] != null;
+				RETURN r = batch.returns.get(i++);
+				//同一个key重新写入时移到队尾
+				claim(key);
+				if (!failed && (batch.ignored == null || !batch.ignored.contains(key))) {
+					long weight = this.returnWeigher == null ? 0 : this.returnWeigher.applyAsLong(r);
+					this.returnMap.put(key, new Retained<>(key, r, weight, expireAt));
+					this.retainedWeight += weight;
+				}
+			}
+			//收缩，从最早写入的开始淘汰
+			evictLocked(false);
+			scheduleCleaner();
+		}
+		this.inFlight.remove(batch);
+		batch.keyed.clear();
+		this.sparePending = batch.keyed;
+		if (this.recycleBuffers && !batch.simple.isEmpty()) {
+			batch.simple.clear();
+			this.spareSimpleList = batch.simple;
 		}
 	}
 	
+	/*
+	 * 写入，失败时如果设置了死信回调，二分重试，返回值和数据一一对应，有问题的数据返回值为null；
+	 * keyed 为true时异常记录在 batch.itemFailures 中。有问题的数据先记在 batch 上，释放写入锁之后再交给死信回调。
+	 * 设置了 outage 时，被判断为下游不可用的异常不再继续二分，失败的这段数据直接进入死信
+	 */
+	private List<RETURN> applyOrBisect(List<DATA> dataList, Batch<DATA, KEY, RETURN> batch, boolean keyed) {
+		try {
+			return apply(dataList);
+		} catch (RuntimeException e) {
+			if (this.deadLetter == null) {
+				throw e;
+			}
+			@SuppressWarnings("unchecked")
+			RETURN[] returns = (RETURN[]) new Object[dataList.size()];
+			RuntimeException[] itemFailures = new RuntimeException[dataList.size()];
+			int calls = BisectingRetry.retry(dataList, e, this::apply, new BisectingRetry.Handler<DATA, RETURN>() {
+				@Override
+				public void success(int offset, List<RETURN> rList) {
+					if (rList != null) {
+						for (int i = 0; i < rList.size(); i++) {
+							returns[offset + i] = rList.get(i);
+						}
+					}
+				}
+
+				@Override
+				public void failure(int index, DATA item, RuntimeException ex) {
+					itemFailures[index] = ex;
+					batch.deadLetter(item, ex);
+				}
+			}, this.outage);
+			log.info("batch of {} failed, bisected with {} retries", dataList.size(), calls);
+			if (keyed) {
+				batch.itemFailures = itemFailures;
+			}
+			return Arrays.asList(returns);
+		}
+	}
+
+	/* 返回值是否还保留着，顺带清理过期的，调用时必须持有监视器 */
+	private boolean hasReturn(KEY signKey) {
+		if (this.retainTtlNanos > 0) {
+			evictLocked(true);
+		}
+		return this.returnMap.containsKey(signKey);
+	}
+
+	/* 取走保留的返回值，调用时必须持有监视器 */
+	private RETURN claim(KEY signKey) {
+		Retained<KEY, RETURN> r = this.returnMap.remove(signKey);
+		if (r == null) {
+			return null;
+		}
+		this.retainedWeight -= r.weight;
+		this.retainedCount = this.returnMap.size();
+		return r.value;
+	}
+
+	/*
+	 * 从最早写入的开始淘汰超出个数、超出重量、过期的返回值，只检查头部，没有需要淘汰的时候是 O(1) 的；
+	 * expireOnly 为 true 时只淘汰过期的。调用时必须持有监视器
+	 */
+	private void evictLocked(boolean expireOnly) {
+		long now = this.retainTtlNanos > 0 ? System.nanoTime() : 0;
+		int evicted = 0;
+		Iterator<Retained<KEY, RETURN>> it = this.returnMap.values().iterator();
+		while (it.hasNext()) {
+			Retained<KEY, RETURN> head = it.next();
+			boolean evict = (this.retainTtlNanos > 0 && now - head.expireAt >= 0)
+					|| (!expireOnly && (this.returnMap.size() > this.holdReturnValueMaxNum
+					|| (this.returnWeigher != null && this.retainedWeight > this.maxRetainedWeight)));
+			if (!evict) {
+				break;
+			}
+			it.remove();
+			this.retainedWeight -= head.weight;
+			if (this.evictionListener != null) {
+				this.evictedList.add(head);
+			}
+			evicted++;
+		}
+		this.retainedCount = this.returnMap.size();
+		if (evicted > 0 && this.metrics != null) {
+			this.metrics.recordEvictedReturns(evicted);
+		}
+	}
+
+	/* 有保留的返回值时，在最早的一个过期时清理，同一时间只有一个清理任务，调用时必须持有监视器 */
+	private void scheduleCleaner() {
+		if (this.timer == null || this.cleanerScheduled || this.returnMap.isEmpty()) {
+			return;
+		}
+		long delay = this.returnMap.values().iterator().next().expireAt - System.nanoTime();
+		this.cleanerScheduled = true;
+		this.timer.schedule(this::cleanExpired, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void cleanExpired() {
+		synchronized (this) {
+			this.cleanerScheduled = false;
+			evictLocked(true);
+			scheduleCleaner();
+		}
+		notifyEvicted();
+	}
+
+	/* 在写入锁外把二分重试找出的有问题的数据交给死信回调 */
+	private void notifyDeadLetters(Batch<DATA, KEY, RETURN> batch) {
+		if (batch.deadItems == null) {
+			return;
+		}
+		for (int i = 0; i < batch.deadItems.size(); i++) {
+			try {
+				this.deadLetter.accept(batch.deadItems.get(i), batch.deadErrors.get(i));
+			} catch (RuntimeException e) {
+				log.warn(e.getMessage(), e);
+			}
+		}
+	}
+
+	/* 在监视器外把淘汰的返回值交给淘汰回调 */
+	private void notifyEvicted() {
+		if (this.evictionListener == null) {
+			return;
+		}
+		List<Retained<KEY, RETURN>> evicted;
+		synchronized (this) {
+			if (this.evictedList.isEmpty()) {
+				return;
+			}
+			evicted = this.evictedList;
+			this.evictedList = new ArrayList<>();
+		}
+		for (Retained<KEY, RETURN> r : evicted) {
+			try {
+				this.evictionListener.accept(r.key, r.value);
+			} catch (RuntimeException e) {
+				log.warn(e.getMessage(), e);
+			}
+		}
+	}
+
+	/* 调用 function，需要时上报写入耗时 */
+	private List<RETURN> apply(List<DATA> dataList) {
+		if (this.metrics == null) {
+			return this.function.apply(dataList);
+		}
+		int size = dataList.size();
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			List<RETURN> rList = this.function.apply(dataList);
+			success = true;
+			return rList;
+		} finally {
+			this.metrics.recordFlush(size, System.nanoTime() - start, success);
+		}
+	}
+
+	/* 调用时必须持有监视器 */
+	private Batch<DATA, KEY, RETURN> findInFlight(KEY signKey) {
+		for (Batch<DATA, KEY, RETURN> batch : this.inFlight) {
+			if (batch.keyed.containsKey(signKey)) {
+				return batch;
+			}
+		}
+		return null;
+	}
+
 	/**
-	 * 尝试获取真实值，如果目前没有被求值，返回null
+	 * @return 当前还没有交出写入的条数，不加锁读取，监控采集不会和生产者竞争监视器
+	 */
+	public long getBufferedCount() {
+		return this.bufferedCount;
+	}
+
+	/**
+	 * @return 当前保留着等待被取走的返回值个数，不加锁读取
+	 */
+	public long getRetainedReturnCount() {
+		return this.retainedCount;
+	}
+
+	/**
+	 * @return 当前保留着的返回值的总重量，没有设置返回值重量时为0，不加锁读取
+	 */
+	public long getRetainedReturnWeight() {
+		return this.retainedWeight;
+	}
+
+	/**
+	 * 立即获取真实值，如果没有被求值，立即求值并返回；
+	 * 已经有批次在写入时先等它写完，再把攒下的数据（包括其他线程要读的）一起写入
 	 * @param signKey
 	 * @return
 	 */
-	public synchronized RETURN tryGetAndRemove(KEY signKey) {
-		if (this.returnMap.containsKey(signKey)) {
-			return this.returnMap.remove(signKey);
-		} else {
-			return null;
+	public RETURN getAndRemove(KEY signKey) {
+		try {
+			return forceGetAndRemove(signKey);
+		} finally {
+			notifyEvicted();
 		}
 	}
 
 	/*强制求值，并返回真实值*/
 	private RETURN forceGetAndRemove(KEY signKey) {
-		if (this.dataMap.containsKey(signKey)) {
-			this.flushAll();
+		for (;;) {
+			Batch<DATA, KEY, RETURN> own = null;
+			Batch<DATA, KEY, RETURN> waitFor;
+			boolean inWaitedBatch = false;
+			synchronized (this) {
+				if (hasReturn(signKey)) {
+					return claim(signKey);
+				}
+				if (this.pending.containsKey(signKey)) {
+					waitFor = this.inFlight.peekLast();
+					if (waitFor == null) {
+						own = handOff();
+					}
+				} else {
+					waitFor = findInFlight(signKey);
+					if (waitFor == null) {
+						return null;
+					}
+					inWaitedBatch = true;
+				}
+			}
+			if (own != null) {
+				write(own);
+			} else {
+				waitFor.done.join();
+				if (inWaitedBatch && waitFor.failure != null) {
+					throw waitFor.failure;
+				}
+			}
 		}
-		
-		if (this.returnMap.containsKey(signKey)) {
-			return this.returnMap.remove(signKey);
-		} else {
-			return null;
+	}
+	
+	/**
+	 * 批量获取真实值，还没有被求值的一起求值一次，而不是逐个强制求值
+	 * @param signKeys
+	 * @return key 到返回值的 map，已经被取走或者淘汰的 key 不在 map 中
+	 */
+	public Map<KEY, RETURN> getAndRemoveAll(Collection<KEY> signKeys) {
+		Map<KEY, RETURN> result = new HashMap<>(signKeys.size() * 4 / 3 + 1);
+		boolean needFlush = false;
+		synchronized (this) {
+			for (KEY key : signKeys) {
+				if (hasReturn(key)) {
+					result.put(key, claim(key));
+				} else if (this.pending.containsKey(key) || findInFlight(key) != null) {
+					needFlush = true;
+				}
+			}
 		}
+		if (!needFlush) {
+			notifyEvicted();
+			return result;
+		}
+		flushAll();
+		synchronized (this) {
+			for (KEY key : signKeys) {
+				if (!result.containsKey(key) && hasReturn(key)) {
+					result.put(key, claim(key));
+				}
+			}
+		}
+		notifyEvicted();
+		return result;
+	}
+	
+	/**
+	 * 尝试获取真实值，如果目前没有被求值，返回null
+	 * @param signKey
+	 * @return
+	 */
+	public RETURN tryGetAndRemove(KEY signKey) {
+		RETURN r;
+		synchronized (this) {
+			r = hasReturn(signKey) ? claim(signKey) : null;
+		}
+		notifyEvicted();
+		return r;
 	}
 
 	/**
 	 * 使用 try() {}语法可以自动关闭，特殊情况也可以手动关闭
 	 */
 	@Override
-	public synchronized void close() {
+	public void close() {
+		this.registration.unregister();
 		flushAll();
 	}
+
+	/**
+	 * 一个保留着的返回值
+	 */
+	private static final class Retained<KEY, RETURN> {
+		private final KEY key;
+		private final RETURN value;
+		private final long weight;
+		/** System.nanoTime() 的过期时间，不限制保留时长时无意义 */
+		private final long expireAt;
+
+		private Retained(KEY key, RETURN value, long weight, long expireAt) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.expireAt = expireAt;
+		}
+	}
+
+	/**
+	 * 交出去等待写入的一个批次
+	 */
+	private static final class Batch<DATA, KEY, RETURN> {
+		private final LinkedHashMap<KEY, DATA> keyed;
+		private List<DATA> asyncData;
+		private List<CompletableFuture<RETURN>> futures;
+		private List<DATA> simple;
+		/** 写入完成（不管成功失败）、返回值已经发布后完成 */
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		/** 写入中被 ignore 的 key，由 LazyBatchSaverWithReturn 的监视器保护 */
+		private Set<KEY> ignored;
+		/*
+		 * 以下两个变量在写入线程上设置，done 完成之后可见
+		 */
+		private List<RETURN> returns;
+		private RuntimeException failure;
+		/** 二分重试后每条数据的异常，没有重试时为null */
+		private RuntimeException[] itemFailures;
+		/** 二分重试后仍然失败、等待交给死信回调的数据和异常，一一对应 */
+		private List<DATA> deadItems;
+		private List<RuntimeException> deadErrors;
+
+		private Batch(LinkedHashMap<KEY, DATA> keyed, List<DATA> asyncData, List<CompletableFuture<RETURN>> futures,
+					  List<DATA> simple) {
+			this.keyed = keyed;
+			this.asyncData = asyncData;
+			this.futures = futures;
+			this.simple = simple;
+		}
+
+		private void deadLetter(DATA item, RuntimeException e) {
+			if (this.deadItems == null) {
+				this.deadItems = new ArrayList<>();
+				this.deadErrors = new ArrayList<>();
+			}
+			this.deadItems.add(item);
+			this.deadErrors.add(e);
+		}
+
+		private void ignore(KEY key) {
+			if (this.ignored == null) {
+				this.ignored = new HashSet<>();
+			}
+			this.ignored.add(key);
+		}
+
+		private void complete() {
+			int keyedNum = this.returns == null ? 0 : this.returns.size() - this.futures.size();
+			for (int i = 0; i < this.futures.size(); i++) {
+				if (this.failure != null) {
+					this.futures.get(i).completeExceptionally(this.failure);
+				} else if (this.itemFailures != null && this.itemFailures[keyedNum + i] != null) {
+					this.futures.get(i).completeExceptionally(this.itemFailures[keyedNum + i]);
+				} else {
+					this.futures.get(i).complete(this.returns.get(keyedNum + i));
+				}
+			}
+			this.done.complete(null);
+		}
+	}
+
+	/**
+	 * LazyBatchSaverWithReturn 构造器
+	 * @param <DATA>
+	 * @param <KEY>
+	 * @param <RETURN>
+	 */
+	public static final class Builder<DATA, KEY, RETURN> {
+		private final int flashSize;
+		private final Function<List<DATA>, List<RETURN>> function;
+		private final int holdReturnValueMaxNum;
+		private ToLongFunction<DATA> weigher;
+		private long maxBatchWeight = 0;
+		private boolean recycleBuffers = false;
+		private BatchSaverMetrics metrics;
+		private long retainTtlNanos = 0;
+		private ToLongFunction<RETURN> returnWeigher;
+		private long maxRetainedWeight = 0;
+		private BiConsumer<KEY, RETURN> evictionListener;
+		private HashedWheelTimer timer;
+		private BiConsumer<DATA, RuntimeException> deadLetter;
+		private Predicate<RuntimeException> outage;
+		private FlushRegistry flushRegistry = FlushRegistry.global();
+
+		private Builder(int flashSize, Function<List<DATA>, List<RETURN>> function, int holdReturnValueMaxNum) {
+			if (flashSize < 1) {
+				throw new IllegalArgumentException("flashSize must > 0 !");
+			}
+			if (function == null) {
+				throw new IllegalArgumentException("function can't be null!");
+			}
+			this.flashSize = flashSize;
+			this.function = function;
+			this.holdReturnValueMaxNum = holdReturnValueMaxNum;
+		}
+
+		/**
+		 * 限制批次的总重量，条数或者重量任一达到上限就写入，单条数据超过上限时单独写入
+		 * @param weigher 单条数据的重量，比如估算的字节数
+		 * @param maxBatchWeight 批次的最大总重量，比如 db 的 max_allowed_packet
+		 */
+		public Builder<DATA, KEY, RETURN> maxBatchWeight(ToLongFunction<DATA> weigher, long maxBatchWeight) {
+			if (weigher == null) {
+				throw new IllegalArgumentException("weigher can't be null!");
+			}
+			if (maxBatchWeight < 1) {
+				throw new IllegalArgumentException("maxBatchWeight must > 0 !");
+			}
+			this.weigher = weigher;
+			this.maxBatchWeight = maxBatchWeight;
+			return this;
+		}
+
+		/**
+		 * 复用传给 function 的数据列表，function 返回后不能再持有传入的列表
+		 */
+		public Builder<DATA, KEY, RETURN> recycleBuffers() {
+			this.recycleBuffers = true;
+			return this;
+		}
+
+		/**
+		 * 监控回调，比如 {@link BatchSaverStats}
+		 */
+		public Builder<DATA, KEY, RETURN> metrics(BatchSaverMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * 限制返回值的保留时长，写入后超过这个时长还没有被取走的返回值会被淘汰
+		 * @param ttl
+		 * @param unit
+		 */
+		public Builder<DATA, KEY, RETURN> retainTtl(long ttl, TimeUnit unit) {
+			if (ttl < 1) {
+				throw new IllegalArgumentException("ttl must > 0 !");
+			}
+			this.retainTtlNanos = unit.toNanos(ttl);
+			return this;
+		}
+
+		/**
+		 * 限制保留的返回值的总重量，超出时从最早写入的开始淘汰
+		 * @param returnWeigher 单个返回值的重量，比如估算的字节数
+		 * @param maxRetainedWeight 保留的最大总重量
+		 */
+		public Builder<DATA, KEY, RETURN> maxRetainedWeight(ToLongFunction<RETURN> returnWeigher, long maxRetainedWeight) {
+			if (returnWeigher == null) {
+				throw new IllegalArgumentException("returnWeigher can't be null!");
+			}
+			if (maxRetainedWeight < 1) {
+				throw new IllegalArgumentException("maxRetainedWeight must > 0 !");
+			}
+			this.returnWeigher = returnWeigher;
+			this.maxRetainedWeight = maxRetainedWeight;
+			return this;
+		}
+
+		/**
+		 * 返回值没有被取走就被淘汰（超出个数、超出重量、过期）时的回调，在监视器外调用，
+		 * 可以把返回值写到低速存储，之后从低速存储中取
+		 */
+		public Builder<DATA, KEY, RETURN> evictionListener(BiConsumer<KEY, RETURN> evictionListener) {
+			this.evictionListener = evictionListener;
+			return this;
+		}
+
+		/**
+		 * 批次写入失败时二分重试，找出有问题的数据交给死信回调，其余数据照常写入；要求 function 失败时整批不生效。
+		 * 有问题的数据不保留返回值（getAndRemove 返回null），addAsync 的 future 以这条数据的异常完成。
+		 * 总是二分到单条数据，每条有问题的数据大约多调用 2*log2(批次大小) 次 function；死信回调在写入锁外调用
+		 * @param deadLetter 死信回调，参数是有问题的数据和单独写入它时的异常
+		 */
+		public Builder<DATA, KEY, RETURN> bisectOnFailure(BiConsumer<DATA, RuntimeException> deadLetter) {
+			return bisectOnFailure(deadLetter, null);
+		}
+
+		/**
+		 * 同 {@link #bisectOnFailure(BiConsumer)}，但是写入异常被 outage 判断为下游不可用（比如连接失败、超时）时，
+		 * 失败的这段数据不再二分，直接全部交给死信回调，避免下游不可用时每个批次都调用 2n-1 次 function
+		 * @param deadLetter 死信回调，参数是有问题的数据和写入它时的异常
+		 * @param outage 判断异常是不是下游不可用，而不是数据本身的问题，为null时总是二分到底
+		 */
+		public Builder<DATA, KEY, RETURN> bisectOnFailure(BiConsumer<DATA, RuntimeException> deadLetter,
+				Predicate<RuntimeException> outage) {
+			if (deadLetter == null) {
+				throw new IllegalArgumentException("deadLetter can't be null!");
+			}
+			this.deadLetter = deadLetter;
+			this.outage = outage;
+			return this;
+		}
+
+		/**
+		 * 清理过期返回值使用的定时器，不设置时使用进程内共享的 {@link HashedWheelTimer#shared()}
+		 */
+		public Builder<DATA, KEY, RETURN> timer(HashedWheelTimer timer) {
+			this.timer = timer;
+			return this;
+		}
+
+		/**
+		 * 登记到哪个 FlushRegistry，不设置时登记到 {@link FlushRegistry#global()}
+		 */
+		public Builder<DATA, KEY, RETURN> flushRegistry(FlushRegistry flushRegistry) {
+			if (flushRegistry == null) {
+				throw new IllegalArgumentException("flushRegistry can't be null!");
+			}
+			this.flushRegistry = flushRegistry;
+			return this;
+		}
+
+		public LazyBatchSaverWithReturn<DATA, KEY, RETURN> build() {
+			return new LazyBatchSaverWithReturn<>(this);
+		}
+	}
 }
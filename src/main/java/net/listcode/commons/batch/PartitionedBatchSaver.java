@@ -0,0 +1,110 @@
+package net.listcode.commons.batch;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * 分区并行的批量保存类，按分区key的hash把数据路由到N个互相独立的 LazyBatchSaver 上，
+ * 每个分区在自己的写入线程上攒批次、写入，不同分区并行写入，同一个key的数据始终在同一个分区，严格按添加顺序写入
+ * <p>
+ * 适用于单个 LazyBatchSaver 串行写入成为瓶颈，而 db 连接池还有空闲连接的场景
+ * @author leo
+ *
+ * @param <T>
+ * @param <K> 分区key
+ */
+public class PartitionedBatchSaver<T, K> implements AutoCloseable {
+
+	private final Function<T, K> partitionKeyFn;
+	private final LazyBatchSaver<T>[] partitions;
+
+	/**
+	 * 每个分区使用一个异步写入的 LazyBatchSaver，最多一个批次在写入、一个批次在排队，排满时阻塞生产者
+	 * @param partitions 分区数，一般不超过 db 连接池大小
+	 * @param flashSize
+	 * @param partitionKeyFn 取分区key
+	 * @param consumer 批量写入方法，会被多个分区并发调用，需要线程安全
+	 */
+	public PartitionedBatchSaver(int partitions, int flashSize, Function<T, K> partitionKeyFn,
+								 Consumer<List<T>> consumer) {
+		this(partitions, partitionKeyFn, i -> LazyBatchSaver.builder(flashSize, consumer)
+				.asyncFlush(2, LazyBatchSaver.BackpressurePolicy.BLOCK)
+				.build());
+	}
+
+	/**
+	 *
+	 * @param partitions 分区数
+	 * @param partitionKeyFn 取分区key
+	 * @param partitionFactory 根据分区号创建分区的 saver，为了保证同一个key的顺序，必须是单条带、异步写入的 saver
+	 */
+	@SuppressWarnings("unchecked")
+	public PartitionedBatchSaver(int partitions, Function<T, K> partitionKeyFn,
+								 IntFunction<LazyBatchSaver<T>> partitionFactory) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must > 0 !");
+		}
+		if (partitionKeyFn == null || partitionFactory == null) {
+			throw new IllegalArgumentException("partitionKeyFn, partitionFactory can't be null!");
+		}
+		this.partitionKeyFn = partitionKeyFn;
+		this.partitions = new LazyBatchSaver[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = partitionFactory.apply(i);
+		}
+	}
+
+	public void addAndMayFlush(T item) {
+		this.partitions[partitionOf(this.partitionKeyFn.apply(item))].addAndMayFlush(item);
+	}
+
+	private int partitionOf(K key) {
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % this.partitions.length;
+	}
+
+	/**
+	 * @return 分区数
+	 */
+	public int getPartitionNum() {
+		return this.partitions.length;
+	}
+
+	/**
+	 * 所有分区并行强制写入
+	 * @return 所有分区都写入完成后完成
+	 */
+	public CompletableFuture<Void> flushAsync() {
+		CompletableFuture<?>[] futures = new CompletableFuture[this.partitions.length];
+		for (int i = 0; i < this.partitions.length; i++) {
+			futures[i] = this.partitions[i].flushAsync();
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	/**
+	 * 强制写入，等待所有分区写入完成，写入失败时抛出 CompletionException
+	 */
+	public void flush() {
+		flushAsync().join();
+	}
+
+	/**
+	 * 并行关闭所有分区，等待所有分区写入完成
+	 */
+	@Override
+	public void close() {
+		CompletableFuture<?>[] futures = new CompletableFuture[this.partitions.length];
+		for (int i = 0; i < this.partitions.length; i++) {
+			futures[i] = this.partitions[i].closeAsync();
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+}
@@ -0,0 +1,249 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 并行的优雅关闭：所有登记的任务同时收到停止信号，在同一个全局截止时间内并行收尾，而不是像逐个调用 stopSafly 那样每个任务各等一个超时
+ * <p>
+ * 关闭分两个阶段，共用一个截止时间：
+ * <ol>
+ *     <li>同时停止所有 BaseTimeTask（自己线程运行的、TimeTaskScheduler 托管的），并行执行各自的 clearUp</li>
+ *     <li>同时关闭所有登记的 AutoCloseable，并写入 FlushRegistry 中所有还有数据的 saver；
+ *     放在任务之后，是因为任务的 clearUp 可能还会往 saver 中添加数据</li>
+ * </ol>
+ * 截止时间到了还没有完成的会被报告（返回值和 warn 日志），不再等待。
+ * {@link #installShutdownHook(long, TimeUnit)} 把关闭注册为 JVM 的 shutdown hook，比如让所有缓冲的批次在 k8s 的终止宽限期内写完
+ * @author leo
+ *
+ */
+@Slf4j
+public final class ShutdownCoordinator {
+
+	private final FlushRegistry flushRegistry;
+
+	/*
+	 * 以下变量都由 this 的监视器保护
+	 */
+	private final List<TaskEntry> tasks = new ArrayList<>();
+	private final List<TimeTaskScheduler> schedulers = new ArrayList<>();
+	private final Map<String, AutoCloseable> closeables = new LinkedHashMap<>();
+	private boolean hookInstalled = false;
+	/** 已经关闭时为关闭的结果 */
+	private List<String> unfinished;
+
+	/**
+	 *
+	 * @param flushRegistry 关闭时写入这个登记表中所有还有数据的 saver，可以为null
+	 */
+	public ShutdownCoordinator(FlushRegistry flushRegistry) {
+		this.flushRegistry = flushRegistry;
+	}
+
+	/**
+	 * 进程内共享的协调器，关闭时写入 {@link FlushRegistry#global()} 中的 saver
+	 */
+	public static ShutdownCoordinator global() {
+		return GlobalHolder.INSTANCE;
+	}
+
+	private static final class GlobalHolder {
+		private static final ShutdownCoordinator INSTANCE = new ShutdownCoordinator(FlushRegistry.global());
+	}
+
+	/**
+	 * 登记一个用自己线程运行的任务
+	 * @param task
+	 * @param handle 运行这个任务的线程
+	 */
+	public synchronized void register(BaseTimeTask task, Thread handle) {
+		if (task == null || handle == null) {
+			throw new IllegalArgumentException("task, handle can't be null!");
+		}
+		this.tasks.add(new TaskEntry(task, handle));
+	}
+
+	/**
+	 * 登记一个调度器，关闭时停止它托管的所有任务；{@link TimeTaskScheduler#shared()} 不会自动登记，需要收尾时要显式登记
+	 * @param scheduler
+	 */
+	public synchronized void register(TimeTaskScheduler scheduler) {
+		if (scheduler == null) {
+			throw new IllegalArgumentException("scheduler can't be null!");
+		}
+		if (!this.schedulers.contains(scheduler)) {
+			this.schedulers.add(scheduler);
+		}
+	}
+
+	/**
+	 * 登记一个需要在关闭时 close 的对象，比如没有登记在 FlushRegistry 中的 saver、PartitionedBatchSaver
+	 * @param name 报告中使用的名字
+	 * @param closeable
+	 */
+	public synchronized void register(String name, AutoCloseable closeable) {
+		if (name == null || closeable == null) {
+			throw new IllegalArgumentException("name, closeable can't be null!");
+		}
+		this.closeables.put(name, closeable);
+	}
+
+	/**
+	 * 注册为 JVM 的 shutdown hook，只会注册一次
+	 * @param timeout 关闭的全局超时
+	 * @param unit
+	 */
+	public synchronized void installShutdownHook(long timeout, TimeUnit unit) {
+		if (this.hookInstalled) {
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(timeout, unit), "ShutdownCoordinator-hook"));
+		this.hookInstalled = true;
+	}
+
+	/**
+	 * 关闭所有登记的任务和 saver，最多等待 timeout；只会执行一次，重复调用返回第一次的结果
+	 * @param timeout 全局超时
+	 * @param unit
+	 * @return 截止时间前没有完成（包括 close 失败）的任务和 saver，任务和 FlushRegistry 中的 saver 是 类名@identityHashCode，
+	 *         登记的 AutoCloseable 是登记时的名字
+	 */
+	public synchronized List<String> shutdown(long timeout, TimeUnit unit) {
+		if (this.unfinished != null) {
+			return this.unfinished;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<String> result = new ArrayList<>();
+
+		List<TaskEntry> all = new ArrayList<>(this.tasks);
+		for (TimeTaskScheduler scheduler : this.schedulers) {
+			for (BaseTimeTask task : scheduler.tasks()) {
+				all.add(new TaskEntry(task, scheduler));
+			}
+		}
+		//收尾、close 和 saver 的最后写入都在这个池子里并行执行，不会在调度器的几个工作线程、FlushRegistry 的线程池上排队
+		int savers = this.flushRegistry == null ? 0 : this.flushRegistry.size();
+		ThreadPoolExecutor pool = HashedWheelTimer.newDaemonPool("ShutdownCoordinator",
+				Math.max(1, Math.max(all.size(), this.closeables.size() + savers)));
+		try {
+			stopTasks(all, pool, deadline, result);
+			closeAll(pool, deadline, result);
+		} finally {
+			pool.shutdown();
+		}
+		if (result.isEmpty()) {
+			log.info("shutdown finished, {} tasks", all.size());
+		} else {
+			log.warn("shutdown timeout, unfinished: {}", result);
+		}
+		this.unfinished = result;
+		return result;
+	}
+
+	private void stopTasks(List<TaskEntry> all, ThreadPoolExecutor pool, long deadline, List<String> result) {
+		//先同时发出停止信号，再按同一个截止时间等待
+		for (TaskEntry e : all) {
+			if (e.handle != null) {
+				e.task.signalStop(e.handle);
+			} else {
+				e.scheduler.signalStop(e.task, pool);
+			}
+		}
+		boolean interrupted = false;
+		for (TaskEntry e : all) {
+			boolean stoped = e.task.isStoped();
+			if (!stoped && !interrupted) {
+				try {
+					stoped = e.task.awaitStoped(remainingMillis(deadline));
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (!stoped) {
+				if (e.handle != null) {
+					//和 stopSafly 一样，超时后再中断一次
+					e.handle.interrupt();
+				}
+				result.add(e.task.getClass().getSimpleName() + "@"
+						+ Integer.toHexString(System.identityHashCode(e.task)));
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeAll(ThreadPoolExecutor pool, long deadline, List<String> result) {
+		Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+		for (Map.Entry<String, AutoCloseable> e : this.closeables.entrySet()) {
+			AutoCloseable closeable = e.getValue();
+			futures.put(e.getKey(), CompletableFuture.runAsync(() -> {
+				try {
+					closeable.close();
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			}, pool));
+		}
+		if (this.flushRegistry != null) {
+			//同时登记为 AutoCloseable 的 saver 由 close 写入，这里跳过，不会重复写入、重复报告
+			Set<Object> closing = Collections.newSetFromMap(new IdentityHashMap<>());
+			closing.addAll(this.closeables.values());
+			futures.putAll(this.flushRegistry.flushEach(0, true, pool, closing));
+		}
+		for (Map.Entry<String, CompletableFuture<Void>> e : futures.entrySet()) {
+			if (Thread.currentThread().isInterrupted()) {
+				result.add(e.getKey());
+				continue;
+			}
+			try {
+				e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException ex) {
+				result.add(e.getKey());
+			} catch (ExecutionException ex) {
+				log.warn("close " + e.getKey() + " failed", ex.getCause());
+				result.add(e.getKey());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				result.add(e.getKey());
+			}
+		}
+	}
+
+	private static long remainingMillis(long deadline) {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+
+	/**
+	 * 一个需要停止的任务，handle 和 scheduler 只有一个不为null
+	 */
+	private static final class TaskEntry {
+		private final BaseTimeTask task;
+		private final Thread handle;
+		private final TimeTaskScheduler scheduler;
+
+		private TaskEntry(BaseTimeTask task, Thread handle) {
+			this.task = task;
+			this.handle = handle;
+			this.scheduler = null;
+		}
+
+		private TaskEntry(BaseTimeTask task, TimeTaskScheduler scheduler) {
+			this.task = task;
+			this.handle = null;
+			this.scheduler = scheduler;
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package net.listcode.commons.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基于内存映射文件的分段溢写日志，下游（比如 db）不可用时把批次数据持久化到本地磁盘，恢复后（或者进程重启后）再回放
+ * <p>
+ * 文件格式：每个段文件开头8字节是已经回放成功的位置，之后是一条条记录，每条记录是 [长度+1][crc32][序列化后的数据]，
+ * 长度为0表示段结束。回放时每成功写入一批就推进已回放位置，段文件全部回放成功后删除；
+ * 回放失败的那一批下次会被重新回放，写入方法需要幂等（至少一次语义）
+ * <p>
+ * 注意 Windows 下被映射的文件在 GC 回收映射之前不能删除，这里只在 Linux 下使用
+ * @author leo
+ *
+ * @param <T>
+ */
+@Slf4j
+public class SpillLog<T> implements AutoCloseable {
+
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".log";
+	/** 段文件头，8字节的已回放位置 */
+	private static final int HEADER = 8;
+	/** 记录头，4字节长度+4字节crc */
+	private static final int RECORD_HEADER = 8;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final Function<T, byte[]> serializer;
+	private final Function<byte[], T> deserializer;
+
+	/*
+	 * 以下变量都由 this 的监视器保护
+	 */
+	/** 已经写满（或者被回放封存）等待回放的段，最早的在前 */
+	private final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+	/** 正在追加的段 */
+	private Segment active;
+	private long nextSeq = 0;
+	private boolean closed = false;
+
+	/** 同一时间只允许一个回放 */
+	private final Object replayLock = new Object();
+
+	/**
+	 *
+	 * @param dir 段文件所在目录，目录中已有的段文件（上次进程没有回放完的）会在回放时被处理
+	 * @param segmentBytes 单个段文件的大小，比如 64MB
+	 * @param serializer 序列化方法
+	 * @param deserializer 反序列化方法
+	 */
+	public SpillLog(File dir, int segmentBytes, Function<T, byte[]> serializer, Function<byte[], T> deserializer) {
+		if (segmentBytes <= HEADER + RECORD_HEADER) {
+			throw new IllegalArgumentException("segmentBytes too small!");
+		}
+		if (serializer == null || deserializer == null) {
+			throw new IllegalArgumentException("serializer, deserializer can't be null!");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("can't create dir " + dir);
+		}
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.serializer = serializer;
+		this.deserializer = deserializer;
+
+		File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files != null) {
+			Arrays.sort(files);
+			for (File f : files) {
+				long seq = parseSeq(f.getName());
+				if (seq < 0) {
+					//不是自己写的段（比如手工复制进来的文件），跳过
+					log.warn("skip unknown file {} in spill dir", f);
+					continue;
+				}
+				this.nextSeq = Math.max(this.nextSeq, seq + 1);
+				this.sealed.addLast(new Segment(f));
+			}
+			if (!this.sealed.isEmpty()) {
+				log.info("found {} spill segments in {}", this.sealed.size(), dir);
+			}
+		}
+	}
+
+	/* 段文件名中的序号，不是合法的序号时返回-1 */
+	private static long parseSeq(String name) {
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 追加一个批次并刷到磁盘
+	 * @param batch
+	 * @throws UncheckedIOException 写磁盘失败
+	 */
+	public synchronized void append(List<T> batch) {
+		if (this.closed) {
+			throw new IllegalStateException("spill log is closed");
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		for (T item : batch) {
+			byte[] data = this.serializer.apply(item);
+			int need = RECORD_HEADER + data.length;
+			if (this.active == null || this.active.remaining() < need) {
+				roll(need);
+			}
+			this.active.write(data);
+		}
+		this.active.force();
+	}
+
+	/* 封存当前段，新建一个至少能放下 need 字节的段 */
+	private void roll(int need) {
+		if (this.active != null) {
+			this.active.force();
+			this.sealed.addLast(this.active);
+			//新建段失败时 active 不能还指向已经封存的段，否则会被再次封存，数据回放两次
+			this.active = null;
+		}
+		File f = new File(this.dir, String.format("%s%020d%s", PREFIX, this.nextSeq++, SUFFIX));
+		this.active = Segment.create(f, Math.max(this.segmentBytes, HEADER + need));
+	}
+
+	/**
+	 * @return 是否没有待回放的数据
+	 */
+	public synchronized boolean isEmpty() {
+		return this.sealed.isEmpty() && (this.active == null || !this.active.hasData());
+	}
+
+	/**
+	 * @return 待回放的段文件数
+	 */
+	public synchronized int pendingSegments() {
+		return this.sealed.size() + (this.active != null && this.active.hasData() ? 1 : 0);
+	}
+
+	/**
+	 * 按写入顺序回放所有数据，回放成功的段文件会被删除；consumer 抛出异常时停止回放，异常直接抛出，下次从失败的批次继续；
+	 * 关闭后调用直接返回0
+	 * @param consumer 批量写入方法
+	 * @param batchSize 回放时每批的条数
+	 * @return 本次成功回放的条数
+	 */
+	public int replay(Consumer<List<T>> consumer, int batchSize) {
+		synchronized (this.replayLock) {
+			int n = 0;
+			for (;;) {
+				Segment seg;
+				synchronized (this) {
+					if (this.closed) {
+						return n;
+					}
+					seg = this.sealed.peekFirst();
+					if (seg == null) {
+						if (this.active == null || !this.active.hasData()) {
+							return n;
+						}
+						//正在追加的段也封存起来回放，后续追加到新段
+						this.active.force();
+						this.sealed.addLast(this.active);
+						this.active = null;
+						continue;
+					}
+				}
+				n += replaySegment(seg, consumer, batchSize);
+				synchronized (this) {
+					this.sealed.pollFirst();
+				}
+				seg.delete();
+			}
+		}
+	}
+
+	private int replaySegment(Segment seg, Consumer<List<T>> consumer, int batchSize) {
+		MappedByteBuffer buf = seg.map();
+		int pos = (int) buf.getLong(0);
+		int n = 0;
+		List<T> chunk = new ArrayList<>(batchSize);
+		CRC32 crc = new CRC32();
+		while (pos + RECORD_HEADER <= buf.limit()) {
+			int len = buf.getInt(pos) - 1;
+			if (len < 0) {
+				break;
+			}
+			if (pos + RECORD_HEADER + len > buf.limit()) {
+				log.warn("broken record in {} at {}, skip rest of segment", seg.file, pos);
+				break;
+			}
+			byte[] data = new byte[len];
+			buf.position(pos + RECORD_HEADER);
+			buf.get(data);
+			crc.reset();
+			crc.update(data, 0, len);
+			if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+				log.warn("crc mismatch in {} at {}, skip rest of segment", seg.file, pos);
+				break;
+			}
+			chunk.add(this.deserializer.apply(data));
+			pos += RECORD_HEADER + len;
+			if (chunk.size() >= batchSize) {
+				consumer.accept(chunk);
+				n += chunk.size();
+				seg.ack(pos);
+				chunk = new ArrayList<>(batchSize);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			consumer.accept(chunk);
+			n += chunk.size();
+			seg.ack(pos);
+		}
+		return n;
+	}
+
+	/**
+	 * 把映射的内容刷到磁盘并关闭文件，没有回放的数据保留在磁盘上，下次启动时回放
+	 */
+	@Override
+	public synchronized void close() {
+		this.closed = true;
+		if (this.active != null) {
+			this.active.force();
+			this.active.closeChannel();
+		}
+		for (Segment seg : this.sealed) {
+			seg.closeChannel();
+		}
+	}
+
+	/**
+	 * 一个段文件
+	 */
+	private static final class Segment {
+		private final File file;
+		private FileChannel channel;
+		private MappedByteBuffer buf;
+		/** 追加位置，只对正在追加的段有意义 */
+		private int writePos = HEADER;
+		private final CRC32 crc = new CRC32();
+
+		private Segment(File file) {
+			this.file = file;
+		}
+
+		private static Segment create(File file, int size) {
+			Segment seg = new Segment(file);
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				seg.channel = raf.getChannel();
+				seg.buf = seg.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				throw new UncheckedIOException("can't create spill segment " + file, e);
+			}
+			seg.buf.putLong(0, HEADER);
+			return seg;
+		}
+
+		/* 映射已有的段文件，用于回放 */
+		private MappedByteBuffer map() {
+			if (this.buf == null) {
+				try {
+					RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+					this.channel = raf.getChannel();
+					this.buf = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+				} catch (IOException e) {
+					throw new UncheckedIOException("can't open spill segment " + this.file, e);
+				}
+			}
+			return this.buf;
+		}
+
+		private int remaining() {
+			return this.buf.limit() - this.writePos;
+		}
+
+		private boolean hasData() {
+			return this.writePos > HEADER;
+		}
+
+		private void write(byte[] data) {
+			this.crc.reset();
+			this.crc.update(data, 0, data.length);
+			this.buf.putInt(this.writePos + 4, (int) this.crc.getValue());
+			this.buf.position(this.writePos + RECORD_HEADER);
+			this.buf.put(data);
+			//长度最后写，保证读到长度时数据已经完整
+			this.buf.putInt(this.writePos, data.length + 1);
+			this.writePos += RECORD_HEADER + data.length;
+		}
+
+		private void ack(int pos) {
+			this.buf.putLong(0, pos);
+			this.buf.force();
+		}
+
+		private void force() {
+			this.buf.force();
+		}
+
+		private void closeChannel() {
+			if (this.channel != null) {
+				try {
+					this.channel.close();
+				} catch (IOException e) {
+					log.warn(e.getMessage(), e);
+				}
+			}
+		}
+
+		private void delete() {
+			closeChannel();
+			if (!this.file.delete()) {
+				log.warn("can't delete spill segment {}", this.file);
+			}
+		}
+	}
+}
@@ -1,35 +1,57 @@
 package net.listcode.commons.batch;
 
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
 
-//import net.listcode.context.ContextTool;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  *  批量保存的数据，如果长时间没有读，或者没有新数据进来，后有一些一直留在内存中， 这个任务是定时将积攒的数据flush
+ *  <p>
+ *  需要定时写入的 saver 都在 {@link FlushRegistry} 中，LazyBatchSaver、LazyBatchSaverWithReturn 创建时自动登记，使用时不需要额外注册；
+ *  每次只写入有待写入数据、并且一个间隔内没有写入过批次的 saver，数据最多在内存中停留大约两个间隔
  * @author leo
  *
  */
+@Slf4j
 public class TimeBatchSaveTask extends BaseTimeTask{
 
+	private final FlushRegistry registry;
+	private final long idleMillis;
+
 	public TimeBatchSaveTask(int runIntervalOfSecond) {
+		this(runIntervalOfSecond, FlushRegistry.global());
+	}
+
+	/**
+	 *
+	 * @param runIntervalOfSecond 运行间隔
+	 * @param registry 定时写入哪个登记表中的 saver
+	 */
+	public TimeBatchSaveTask(int runIntervalOfSecond, FlushRegistry registry) {
 		//第一次运行在初始化10s以后， 运行间隔来源于参数， true代表关闭此task时是否最后运行一次
 		super(new Date(System.currentTimeMillis() + 10 * 1000L), runIntervalOfSecond, true);
+		if (registry == null) {
+			throw new IllegalArgumentException("registry can't be null!");
+		}
+		this.registry = registry;
+		this.idleMillis = runIntervalOfSecond * 1000L;
 	}
 
 	@Override
 	protected void doit() throws InterruptedException {
-		/*
-		一个BaseTimeTask的实现例子，注释掉的代码意思是 定期执行注册的写入方法，使用时只需要简单注册即可
-		 */
-//		for (Class<?> key :ContextTool.getFlushkeys()) {
-//			ContextTool.tryFlush(key);
-//		}
+		//写入在登记表的线程池中并行执行，这里不等待，没写完的 saver 下次跳过，不会拖延下一次运行
+		this.registry.flushIdle(this.idleMillis);
 	}
 
 	@Override
 	protected void clearUp() throws InterruptedException {
-		//冗余，理解起来简单
-		this.doit();
+		//最后一次，写入所有数据并等待写完
+		try {
+			this.registry.flushAll().get();
+		} catch (ExecutionException e) {
+			log.warn(e.getMessage(), e);
+		}
 	}
 
 }
@@ -0,0 +1,264 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * BaseTimeTask 的共享调度器，任意多个周期任务共用一个时间轮和一个小的工作线程池，不再每个任务占用一个大部分时间在 sleep 的线程
+ * <p>
+ * 调度语义和 BaseTimeTask 自己运行时一致：执行点是以 fixRunPoint 为起点、runIntervalOfSecond 为间隔的网格，
+ * isRunAtStart 为true时托管后立即执行一次，否则在下一个网格点第一次执行；同一个任务的两次执行不会重叠，
+ * 执行超过间隔时立即开始下一次，之后回到网格上，不会补跑错过的执行点。
+ * 每次的执行时间都由网格用单调时钟（nanoTime）算出，而不是上一次执行结束时间加间隔，长时间运行也不会漂移，也不受系统时间调整影响
+ * <p>
+ * 停止任务使用 {@link #stop(BaseTimeTask, long, TimeUnit)}，doit/clearUp 的生命周期和 stopSafly 一致；
+ * 用 {@link #TimeTaskScheduler(String, int)} 创建的调度器不再使用时调用 {@link #shutdown()}（或者 close），释放自己创建的时间轮和线程池
+ * @author leo
+ *
+ */
+@Slf4j
+public final class TimeTaskScheduler implements AutoCloseable {
+
+	private final HashedWheelTimer timer;
+	private final Executor workers;
+	/** timer 和 workers 是否由这个调度器创建，只有自己创建的才在 shutdown 时停止 */
+	private final boolean ownResources;
+	/** 是否是 shared() 返回的调度器 */
+	private final boolean shared;
+	private final Map<BaseTimeTask, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean shutdown = false;
+
+	/**
+	 * 创建自己的时间轮和线程池，不再使用时调用 {@link #shutdown()}
+	 * @param name 线程名前缀
+	 * @param workerThreads 执行任务的线程数，到期时 tick 线程只是把任务交给工作线程
+	 */
+	public TimeTaskScheduler(String name, int workerThreads) {
+		this(name, workerThreads, false);
+	}
+
+	private TimeTaskScheduler(String name, int workerThreads, boolean shared) {
+		this(new HashedWheelTimer(name + "-tick", 10, 512, null), HashedWheelTimer.newDaemonPool(name, workerThreads),
+				true, shared);
+	}
+
+	/**
+	 * 使用外部的时间轮和线程池，shutdown 时不会停止它们
+	 * @param timer 定时器
+	 * @param workers 执行 doit/clearUp 的线程池
+	 */
+	public TimeTaskScheduler(HashedWheelTimer timer, Executor workers) {
+		this(timer, workers, false, false);
+	}
+
+	private TimeTaskScheduler(HashedWheelTimer timer, Executor workers, boolean ownResources, boolean shared) {
+		if (timer == null || workers == null) {
+			throw new IllegalArgumentException("timer, workers can't be null!");
+		}
+		this.timer = timer;
+		this.workers = workers;
+		this.ownResources = ownResources;
+		this.shared = shared;
+	}
+
+	/**
+	 * 进程内共享的调度器，工作线程空闲时会被回收，线程都是守护线程；不能 shutdown。
+	 * 它托管的任务不会在进程退出时自动停止，需要收尾的话把它显式登记到 ShutdownCoordinator：
+	 * {@code ShutdownCoordinator.global().register(TimeTaskScheduler.shared())}
+	 */
+	public static TimeTaskScheduler shared() {
+		return SharedHolder.INSTANCE;
+	}
+
+	private static final class SharedHolder {
+		private static final TimeTaskScheduler INSTANCE = new TimeTaskScheduler("TimeTaskScheduler",
+				Math.max(2, Runtime.getRuntime().availableProcessors()), true);
+	}
+
+	/**
+	 * 托管一个任务，任务不能已经用自己的线程运行过
+	 * @param task
+	 */
+	public void schedule(BaseTimeTask task) {
+		if (task == null) {
+			throw new IllegalArgumentException("task can't be null!");
+		}
+		if (task.getRunIntervalOfSecond() < 1) {
+			throw new IllegalArgumentException("runIntervalOfSecond must > 0 !");
+		}
+		if (this.shutdown) {
+			throw new IllegalStateException("scheduler is shut down");
+		}
+		if (!task.markScheduled()) {
+			throw new IllegalStateException("task already started");
+		}
+		Entry e = new Entry(task);
+		this.entries.put(task, e);
+
+		//把 fixRunPoint 换算到单调时钟上，之后只用 nanoTime
+		long now = System.nanoTime();
+		long sinceAnchor = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - task.getFixRunPoint().getTime());
+		e.anchor = now - sinceAnchor;
+		e.slot = Math.floorDiv(sinceAnchor, e.interval);
+		if (task.isRunAtStart()) {
+			//和 run() 一样，首次执行算作上一个网格点的执行，下一次在下一个网格点
+			submit(e);
+		} else {
+			e.slot++;
+			scheduleAt(e, now);
+		}
+	}
+
+	/* 在 slot 对应的网格点执行 */
+	private void scheduleAt(Entry e, long now) {
+		e.timeout = this.timer.schedule(() -> submit(e), e.anchor + e.slot * e.interval - now, TimeUnit.NANOSECONDS);
+	}
+
+	private void submit(Entry e) {
+		try {
+			this.workers.execute(() -> runOnce(e));
+		} catch (RejectedExecutionException ex) {
+			log.warn("time task rejected, run in caller thread", ex);
+			runOnce(e);
+		}
+	}
+
+	private void runOnce(Entry e) {
+		BaseTimeTask task = e.task;
+		if (!task.beforeScheduledRun()) {
+			//已经被要求停止，收尾由 stop 负责
+			return;
+		}
+		try {
+			task.doit();
+		} catch (Exception ex) {
+			// 包括停止时的 InterruptedException，记录日志，不用管
+			log.warn(ex.getMessage(), ex);
+		}
+		if (!task.afterScheduledRun()) {
+			//执行期间被要求停止，由执行线程收尾
+			task.finishScheduled();
+			return;
+		}
+		long now = System.nanoTime();
+		e.slot++;
+		long late = now - (e.anchor + e.slot * e.interval);
+		if (late >= 0) {
+			//执行超过了间隔，立即执行下一次，并把这次算作刚过去的网格点，不补跑错过的执行点
+			e.slot += late / e.interval;
+			submit(e);
+		} else {
+			scheduleAt(e, now);
+		}
+	}
+
+	/**
+	 * 停止一个任务：正在执行 doit 时中断它，然后执行 clearUp；超时后再中断一次正在执行的线程
+	 * @param task
+	 * @param timeout
+	 * @param unit
+	 * @return 是否在超时前停止
+	 * @throws InterruptedException
+	 */
+	public boolean stop(BaseTimeTask task, long timeout, TimeUnit unit) throws InterruptedException {
+		if (!signalStop(task, this.workers)) {
+			return task.isStoped();
+		}
+		return task.awaitStoped(unit.toMillis(timeout));
+	}
+
+	/**
+	 * 只发出停止信号，不等待，之后用 BaseTimeTask.awaitStoped 等待，用于同时停止多个任务
+	 * @param clearUpExecutor 任务没有在执行时，在这里执行 clearUp；同时停止很多任务时可以传入更大的线程池，
+	 *                        避免 clearUp 在调度器的几个工作线程上排队
+	 * @return false 表示任务不由这个调度器托管（或者已经在停止）
+	 */
+	boolean signalStop(BaseTimeTask task, Executor clearUpExecutor) {
+		Entry e = this.entries.remove(task);
+		if (e == null) {
+			return false;
+		}
+		HashedWheelTimer.Timeout t = e.timeout;
+		if (t != null) {
+			t.cancel();
+		}
+		if (task.requestStop()) {
+			//没有在执行，在工作线程上收尾，调用者只负责等待
+			try {
+				clearUpExecutor.execute(task::finishScheduled);
+			} catch (RejectedExecutionException ex) {
+				log.warn("time task clear up rejected, run in caller thread", ex);
+				task.finishScheduled();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 关闭调度器：向所有托管中的任务发出停止信号（收尾和 stop 一样在工作线程上执行，不等待），
+	 * 然后停止自己创建的时间轮和线程池，已经提交的收尾会执行完；外部传入的时间轮和线程池不会被停止。
+	 * 需要等待任务收尾完成时，先用 stop 或者 ShutdownCoordinator 停止任务
+	 * @throws IllegalStateException 对 {@link #shared()} 调用
+	 */
+	public void shutdown() {
+		if (this.shared) {
+			throw new IllegalStateException("shared scheduler can't be shut down");
+		}
+		this.shutdown = true;
+		for (BaseTimeTask task : tasks()) {
+			signalStop(task, this.workers);
+		}
+		if (this.ownResources) {
+			this.timer.stop();
+			((ThreadPoolExecutor) this.workers).shutdown();
+		}
+	}
+
+	/**
+	 * 同 {@link #shutdown()}
+	 */
+	@Override
+	public void close() {
+		shutdown();
+	}
+
+	/**
+	 * @return 托管中的任务
+	 */
+	List<BaseTimeTask> tasks() {
+		return new ArrayList<>(this.entries.keySet());
+	}
+
+	/**
+	 * @return 托管中的任务数
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * 一个托管的任务，除 timeout 外只被当前执行这个任务的线程访问，执行之间通过定时器/线程池交接
+	 */
+	private static final class Entry {
+		private final BaseTimeTask task;
+		private final long interval;
+		/** 网格起点，nanoTime */
+		private long anchor;
+		/** 下一次执行的网格序号 */
+		private long slot;
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		private Entry(BaseTimeTask task) {
+			this.task = task;
+			this.interval = TimeUnit.SECONDS.toNanos(task.getRunIntervalOfSecond());
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package net.listcode.commons.batch;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 
 /**
- * 延迟获取某些值， 与 LazyBatchSaverWithReturn 配合使用
+ * 延迟获取某些值， 与 LazyBatchSaverWithReturn、BatchLoader 配合使用
+ * <p>
+ * 线程安全，求值结果会被记住，多个线程并发 get 时只求值一次；多个未求值的 holder 可以用 {@link #resolveAll(Collection, Function)} 一次批量求值
  * @author leo
  *
  */
 public class ValueHolder<REAL_VALUE, HANDLE> {
+	/** 先写 v 再写 volatile 的 hasValue，读到 hasValue 为 true 时 v 一定可见 */
 	private REAL_VALUE v;
-	private boolean hasValue = false;
+	private volatile boolean hasValue = false;
+	/** 正在被 resolveAll 批量求值，由 this 的监视器保护；get 等待批量求值完成，不会单独求值 */
+	private boolean resolving = false;
 	private Function< HANDLE, REAL_VALUE> evaluatFun = null;
 	private final HANDLE handle;
 	private  Consumer< HANDLE > ignoreMethod;
@@ -57,14 +66,72 @@ public class ValueHolder<REAL_VALUE, HANDLE> {
 		return this.hasValue;
 	}
 	
-	public void setValue(REAL_VALUE v) {
+	public synchronized void setValue(REAL_VALUE v) {
 		this.v = v;
 		this.hasValue = true;
 	}
 	
-	private REAL_VALUE forceGet() {
+	private synchronized REAL_VALUE forceGet() {
+		//批量求值会取走值（比如 getAndRemoveAll），这时单独求值只能拿到null
+		boolean interrupted = false;
+		while (this.resolving && !this.hasValue) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.hasValue) {
+			return this.v;
+		}
 		REAL_VALUE x =  evaluatFun.apply(this.handle);
+		this.v = x;
 		this.hasValue = true;
 		return x;
 	}
+
+	/**
+	 * 一次批量求值所有还没有值的 holder，代替逐个 get 时的 N 次强制求值；
+	 * 求值期间其他线程 get 这些 holder 时等待批量求值的结果，已经在被其他 resolveAll 求值的 holder 不再重复求值
+	 * @param holders
+	 * @param bulkEvaluatFun 批量求值方法，比如 LazyBatchSaverWithReturn::getAndRemoveAll，返回的 map 中没有的 handle 值为null
+	 */
+	public static <REAL_VALUE, HANDLE> void resolveAll(Collection<? extends ValueHolder<REAL_VALUE, HANDLE>> holders,
+			Function<List<HANDLE>, Map<HANDLE, REAL_VALUE>> bulkEvaluatFun) {
+		List<ValueHolder<REAL_VALUE, HANDLE>> unresolved = new ArrayList<>();
+		List<HANDLE> handles = new ArrayList<>();
+		for (ValueHolder<REAL_VALUE, HANDLE> holder : holders) {
+			synchronized (holder) {
+				//正在单独求值的 holder 持有监视器，这里会等它求值完成
+				if (!holder.hasValue && !holder.resolving) {
+					holder.resolving = true;
+					unresolved.add(holder);
+					handles.add(holder.handle);
+				}
+			}
+		}
+		if (handles.isEmpty()) {
+			return;
+		}
+		Map<HANDLE, REAL_VALUE> values = null;
+		try {
+			values = bulkEvaluatFun.apply(handles);
+		} finally {
+			//批量求值失败时不记住结果，等待的 get 各自单独求值
+			for (ValueHolder<REAL_VALUE, HANDLE> holder : unresolved) {
+				synchronized (holder) {
+					//求值期间可能已经被 setValue
+					if (values != null && !holder.hasValue) {
+						holder.v = values.get(holder.handle);
+						holder.hasValue = true;
+					}
+					holder.resolving = false;
+					holder.notifyAll();
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,54 @@
+package net.listcode.commons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * BatchSaveSplitTool 的 RETRY_ALL 和 BISECT 策略在不同出错率下的对比，输出写入方法的调用次数（往返次数）和耗时；
+ * 模拟的 db 每次调用有固定的往返耗时加上每行的耗时，批次中有出错的行时整批失败，直接运行 main 方法
+ */
+public class BatchSaveBisectBenchmark {
+
+	private static final int ITEMS = 100_000;
+	private static final int BLOCK_SIZE = 1000;
+	private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+	private static final long PER_ROW_NANOS = 200;
+	private static final double[] ERROR_RATES = {0.0001, 0.001, 0.01, 0.05};
+
+	public static void main(String[] args) {
+		for (double rate : ERROR_RATES) {
+			List<Integer> items = new ArrayList<>(ITEMS);
+			boolean[] bad = new boolean[ITEMS];
+			Random random = new Random(42);
+			for (int i = 0; i < ITEMS; i++) {
+				items.add(i);
+				bad[i] = random.nextDouble() < rate;
+			}
+			for (BatchSaveSplitTool.SaveErrorPolicy policy : new BatchSaveSplitTool.SaveErrorPolicy[]{
+					BatchSaveSplitTool.SaveErrorPolicy.RETRY_ALL, BatchSaveSplitTool.SaveErrorPolicy.BISECT}) {
+				AtomicLong calls = new AtomicLong();
+				Consumer<Collection<Integer>> db = c -> {
+					calls.incrementAndGet();
+					LockSupport.parkNanos(ROUND_TRIP_NANOS + PER_ROW_NANOS * c.size());
+					for (Integer i : c) {
+						if (bad[i]) {
+							throw new IllegalArgumentException("bad row " + i);
+						}
+					}
+				};
+				List<Integer> errorItems = new ArrayList<>();
+				long start = System.nanoTime();
+				BatchSaveSplitTool.batchSaveWithSplit(db, items, BLOCK_SIZE, policy, errorItems, null, null);
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				System.out.printf("error rate %6.2f%%, %-9s: %7d round trips, %6d ms, %5d bad rows%n",
+						rate * 100, policy, calls.get(), millis, errorItems.size());
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package net.listcode.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * BatchSaveSplitTool 的并发写入和出错处理
+ * @author LeoZhang
+ */
+public class BatchSaveSplitToolTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        this.pool.shutdownNow();
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    /**
+     * 所有小批量都失败，第一个小批量等其他小批量都进入失败之后才失败，出错的先后顺序和数据顺序不同
+     */
+    private static Consumer<Collection<Integer>> failFirstBlockLast(CountDownLatch othersFailed) {
+        return items -> {
+            if (items.contains(0)) {
+                try {
+                    othersFailed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                othersFailed.countDown();
+            }
+            throw new IllegalStateException("fail " + items.iterator().next());
+        };
+    }
+
+    @Test
+    public void parallelOrderedErrorsFollowItemOrder() {
+        List<Integer> items = range(0, 40);
+        List<Integer> errorItems = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        BatchSaveSplitTool.batchSaveWithSplit(failFirstBlockLast(new CountDownLatch(3)), items, 10,
+                BatchSaveSplitTool.SaveErrorPolicy.IGNORE_SMALL_BATCH, errorItems, errors, null,
+                this.pool, 4, true);
+
+        assertEquals(items, errorItems);
+        assertEquals(4, errors.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("fail " + i * 10, errors.get(i).getMessage());
+        }
+    }
+
+    @Test
+    public void parallelUnorderedErrorsKeepBlocksTogether() {
+        List<Integer> items = range(0, 40);
+        List<Integer> errorItems = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        BatchSaveSplitTool.batchSaveWithSplit(failFirstBlockLast(new CountDownLatch(3)), items, 10,
+                BatchSaveSplitTool.SaveErrorPolicy.IGNORE_SMALL_BATCH, errorItems, errors, null,
+                this.pool, 4, false);
+
+        assertEquals(4, errors.size());
+        //按出错的先后记录，每个小批量的数据连续记录，和它的异常对应
+        for (int i = 0; i < 4; i++) {
+            int first = errorItems.get(i * 10);
+            assertEquals(range(first, first + 10), errorItems.subList(i * 10, i * 10 + 10));
+            assertEquals("fail " + first, errors.get(i).getMessage());
+        }
+    }
+
+    /**
+     * 包含 bad 中任意一条时整批失败，成功时记录写入的数据
+     */
+    private static Consumer<Collection<Integer>> failOn(List<Integer> bad, List<Integer> saved, AtomicInteger calls) {
+        return items -> {
+            calls.incrementAndGet();
+            for (Integer i : items) {
+                if (bad.contains(i)) {
+                    throw new IllegalStateException("bad " + i);
+                }
+            }
+            synchronized (saved) {
+                saved.addAll(items);
+            }
+        };
+    }
+
+    @Test
+    public void bisectIsolatesBadItems() {
+        List<Integer> items = range(0, 100);
+        List<Integer> bad = Arrays.asList(7, 42, 77);
+        List<Integer> saved = new ArrayList<>();
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> errorItems = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        BatchSaveSplitTool.batchSaveWithSplit(failOn(bad, saved, calls), items, 50,
+                BatchSaveSplitTool.SaveErrorPolicy.BISECT, errorItems, errors, null);
+
+        assertEquals(bad, errorItems);
+        assertEquals(3, errors.size());
+        assertEquals("bad 42", errors.get(1).getMessage());
+        //其余数据都写入了，并且只写入一次
+        List<Integer> expected = new ArrayList<>(items);
+        expected.removeAll(bad);
+        Collections.sort(saved);
+        assertEquals(expected, saved);
+        //每条出错的数据最多 2*log2(50) 次重试，远少于逐条重试的 100 次
+        assertTrue("calls=" + calls.get(), calls.get() <= 2 + 3 * 2 * 6);
+    }
+
+    @Test
+    public void governedBisectDoesNotRetryHalvesOrTripBreaker() {
+        WriteGovernor governor = WriteGovernor.builder()
+                .retry(3, 1, 2)
+                .circuitBreaker(5, 60_000)
+                .build();
+        List<Integer> saved = new ArrayList<>();
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> errorItems = new ArrayList<>();
+        BatchSaveSplitTool.batchSaveWithSplit(failOn(Arrays.asList(0), saved, calls), range(0, 64), 64,
+                BatchSaveSplitTool.SaveErrorPolicy.BISECT, errorItems, null, null, governor);
+
+        assertEquals(Arrays.asList(0), errorItems);
+        assertEquals(63, saved.size());
+        //整个小批量 1 + 3 次重试，二分时每层两次，共 6 层，半个批次不再退避重试
+        assertEquals(4 + 2 * 6, calls.get());
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+    }
+
+    @Test
+    public void bisectInParallelKeepsItemOrder() {
+        List<Integer> items = range(0, 100);
+        List<Integer> bad = Arrays.asList(3, 35, 36, 98);
+        List<Integer> saved = new ArrayList<>();
+        List<Integer> errorItems = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        BatchSaveSplitTool.batchSaveWithSplit(failOn(bad, saved, new AtomicInteger()), items, 10,
+                BatchSaveSplitTool.SaveErrorPolicy.BISECT, errorItems, errors, null, this.pool, 4, true);
+
+        assertEquals(bad, errorItems);
+        for (int i = 0; i < bad.size(); i++) {
+            assertEquals("bad " + bad.get(i), errors.get(i).getMessage());
+        }
+        assertEquals(items.size() - bad.size(), saved.size());
+    }
+
+    /**
+     * 返回 数据*10，包含 bad 时整批失败
+     */
+    private static Function<Collection<Integer>, List<Integer>> timesTen(int bad) {
+        return items -> {
+            List<Integer> r = new ArrayList<>(items.size());
+            for (Integer i : items) {
+                if (i == bad) {
+                    throw new IllegalStateException("bad " + i);
+                }
+                r.add(i * 10);
+            }
+            return r;
+        };
+    }
+
+    /* 23 条数据按 7 条拆分，最后一个小批量不满；bad 所在位置为 null，或者 bad 所在的小批量都是 null */
+    private static List<Integer> expectedReturns(int bad, boolean wholeBlock) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            boolean failed = wholeBlock ? i / 7 == bad / 7 : i == bad;
+            expected.add(failed ? null : i * 10);
+        }
+        return expected;
+    }
+
+    @Test
+    public void returnsLineUpWithItemsAcrossBlocks() {
+        List<Integer> items = range(0, 23);
+        assertEquals(expectedReturns(-1, false),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(-1), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.THROW, null, null, null));
+        assertEquals(expectedReturns(-1, false),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(-1), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.THROW, null, null, null, this.pool, 4, true));
+    }
+
+    @Test
+    public void failedBlockLeavesOnlyItsOwnPositionsNull() {
+        List<Integer> items = range(0, 23);
+        List<Integer> errorItems = new ArrayList<>();
+        assertEquals(expectedReturns(10, true),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(10), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.IGNORE_SMALL_BATCH, errorItems, null, null));
+        assertEquals(range(7, 14), errorItems);
+
+        errorItems.clear();
+        assertEquals(expectedReturns(10, true),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(10), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.IGNORE_SMALL_BATCH, errorItems, null, null,
+                        this.pool, 4, true));
+        assertEquals(range(7, 14), errorItems);
+    }
+
+    @Test
+    public void retriedAndBisectedReturnsKeepOffsets() {
+        List<Integer> items = range(0, 23);
+        Function<Integer, Integer> single = i -> {
+            if (i == 16) {
+                throw new IllegalStateException("bad " + i);
+            }
+            return i * 10;
+        };
+        assertEquals(expectedReturns(16, false),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(16), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.RETRY_ALL, null, null, single));
+        List<Integer> errorItems = new ArrayList<>();
+        assertEquals(expectedReturns(16, false),
+                BatchSaveSplitTool.batchSaveWithSplitAndReturn(timesTen(16), items, 7,
+                        BatchSaveSplitTool.SaveErrorPolicy.BISECT, errorItems, null, null, this.pool, 4, true));
+        assertEquals(Arrays.asList(16), errorItems);
+    }
+}
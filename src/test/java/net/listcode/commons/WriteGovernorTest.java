@@ -0,0 +1,132 @@
+package net.listcode.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * WriteGovernor 的重试和熔断状态机
+ * @author LeoZhang
+ */
+public class WriteGovernorTest {
+
+    private static final long OPEN_MILLIS = 100;
+
+    private static Supplier<Object> failWith(RuntimeException e, AtomicInteger calls) {
+        return () -> {
+            calls.incrementAndGet();
+            throw e;
+        };
+    }
+
+    private static void expectFailure(WriteGovernor governor, Supplier<Object> call) {
+        boolean failed = false;
+        try {
+            governor.execute(1, call);
+        } catch (RuntimeException | AssertionError e) {
+            failed = true;
+        }
+        assertTrue("expected failure", failed);
+    }
+
+    /* 连续失败两次后熔断 */
+    private static WriteGovernor openBreaker() {
+        WriteGovernor governor = WriteGovernor.builder().circuitBreaker(2, OPEN_MILLIS).build();
+        AtomicInteger calls = new AtomicInteger();
+        expectFailure(governor, failWith(new IllegalStateException("down"), calls));
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+        expectFailure(governor, failWith(new IllegalStateException("down"), calls));
+        assertEquals(WriteGovernor.State.OPEN, governor.getState());
+        return governor;
+    }
+
+    @Test
+    public void retriesTransientFailures() {
+        WriteGovernor governor = WriteGovernor.builder().retry(3, 1, 2).build();
+        AtomicInteger calls = new AtomicInteger();
+        String r = governor.execute(1, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("timeout");
+            }
+            return "ok";
+        });
+        assertEquals("ok", r);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void nonRetryableFailureIsNeitherRetriedNorCounted() {
+        WriteGovernor governor = WriteGovernor.builder()
+                .retry(3, 1, 2)
+                .circuitBreaker(1, OPEN_MILLIS)
+                .retryOn(e -> !(e instanceof IllegalArgumentException))
+                .build();
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            expectFailure(governor, failWith(new IllegalArgumentException("duplicate key"), calls));
+        }
+        assertEquals(3, calls.get());
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+    }
+
+    @Test
+    public void openBlocksUntilCooldownThenProbeCloses() {
+        WriteGovernor governor = openBreaker();
+        long start = System.nanoTime();
+        AtomicInteger probes = new AtomicInteger();
+        governor.execute(1, () -> {
+            //冷却后只有这一个批次在试探
+            assertEquals(WriteGovernor.State.HALF_OPEN, governor.getState());
+            return probes.incrementAndGet();
+        });
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited >= OPEN_MILLIS / 2);
+        assertEquals(1, probes.get());
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+    }
+
+    @Test
+    public void failedProbeReopens() {
+        WriteGovernor governor = openBreaker();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicReference<WriteGovernor.State> during = new AtomicReference<>();
+        expectFailure(governor, () -> {
+            during.set(governor.getState());
+            return failWith(new IllegalStateException("still down"), calls).get();
+        });
+        assertEquals(WriteGovernor.State.HALF_OPEN, during.get());
+        assertEquals(1, calls.get());
+        assertEquals(WriteGovernor.State.OPEN, governor.getState());
+    }
+
+    @Test
+    public void probeEndingWithErrorDoesNotStayHalfOpen() {
+        WriteGovernor governor = openBreaker();
+        expectFailure(governor, () -> {
+            throw new AssertionError("bug in write");
+        });
+        assertEquals(WriteGovernor.State.OPEN, governor.getState());
+        //下一个批次可以继续试探，而不是永远等待
+        assertEquals("ok", governor.execute(1, () -> "ok"));
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+    }
+
+    @Test
+    public void nonRetryableProbeCloses() {
+        WriteGovernor governor = WriteGovernor.builder()
+                .circuitBreaker(1, OPEN_MILLIS)
+                .retryOn(e -> !(e instanceof IllegalArgumentException))
+                .build();
+        expectFailure(governor, failWith(new IllegalStateException("down"), new AtomicInteger()));
+        assertEquals(WriteGovernor.State.OPEN, governor.getState());
+        //下游能正常响应（只是数据有问题），恢复写入
+        expectFailure(governor, failWith(new IllegalArgumentException("duplicate key"), new AtomicInteger()));
+        assertEquals(WriteGovernor.State.CLOSED, governor.getState());
+    }
+}
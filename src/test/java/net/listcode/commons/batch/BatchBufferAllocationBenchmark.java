@@ -0,0 +1,49 @@
+package net.listcode.commons.batch;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * LazyBatchSaver 攒批次时的内存分配对比，普通模式 vs 缓冲池模式，输出预热后每条数据分配的字节数
+ * 依赖 HotSpot 的 com.sun.management.ThreadMXBean，直接运行 main 方法
+ */
+public class BatchBufferAllocationBenchmark {
+
+	private static final int FLASH_SIZE = 1000;
+	private static final int ITEMS = 10_000_000;
+	private static final Integer[] VALUES = new Integer[FLASH_SIZE];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = i;
+		}
+	}
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+
+		long[] sink = new long[1];
+		LazyBatchSaver<Integer> plain = new LazyBatchSaver<>(FLASH_SIZE, list -> sink[0] += list.size());
+		LazyBatchSaver<Integer> pooled = LazyBatchSaver.<Integer>leasedBuilder(FLASH_SIZE, lease -> {
+			sink[0] += lease.size();
+			lease.release();
+		}, 2).build();
+
+		for (int round = 0; round < 3; round++) {
+			//第一轮是预热
+			long plainBytes = run(plain, mx, tid);
+			long pooledBytes = run(pooled, mx, tid);
+			System.out.printf("round %d: plain %.3f bytes/item, pooled %.3f bytes/item, pooled buffers allocated %d%n",
+					round, plainBytes / (double) ITEMS, pooledBytes / (double) ITEMS, pooled.getAllocatedBuffers());
+		}
+		System.out.println(sink[0]);
+	}
+
+	private static long run(LazyBatchSaver<Integer> saver, com.sun.management.ThreadMXBean mx, long tid) {
+		long before = mx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < ITEMS; i++) {
+			saver.addAndMayFlush(VALUES[i % FLASH_SIZE]);
+		}
+		return mx.getThreadAllocatedBytes(tid) - before;
+	}
+}
@@ -0,0 +1,157 @@
+package net.listcode.commons.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * FlushPipeline 的背压策略，写入任务交给手动执行的 executor，测试决定什么时候写
+ * @author leo
+ *
+ */
+public class FlushPipelineTest {
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final Executor manual = this.tasks::add;
+	private final List<List<Integer>> written = Collections.synchronizedList(new ArrayList<>());
+	private final List<List<Integer>> dropped = Collections.synchronizedList(new ArrayList<>());
+
+	private FlushPipeline<Integer> pipeline(int maxInFlight, LazyBatchSaver.BackpressurePolicy policy) {
+		return new FlushPipeline<>(this.manual, maxInFlight, policy, this.written::add, this.dropped::add);
+	}
+
+	/* 执行所有已经提交的写入任务 */
+	private void runAll() {
+		Runnable r;
+		while ((r = this.tasks.poll()) != null) {
+			r.run();
+		}
+	}
+
+	@Test
+	public void writesInSubmitOrder() {
+		FlushPipeline<Integer> p = pipeline(3, LazyBatchSaver.BackpressurePolicy.BLOCK);
+		p.submit(Arrays.asList(1));
+		p.submit(Arrays.asList(2));
+		p.submit(Arrays.asList(3));
+		assertEquals(3, p.pendingItems());
+		runAll();
+		assertEquals(Arrays.asList(Arrays.asList(1), Arrays.asList(2), Arrays.asList(3)), this.written);
+		assertEquals(0, p.pendingItems());
+	}
+
+	@Test
+	public void failFastRejectsAndHandsBatchToDropHandler() {
+		FlushPipeline<Integer> p = pipeline(1, LazyBatchSaver.BackpressurePolicy.FAIL_FAST);
+		p.submit(Arrays.asList(1));
+		try {
+			p.submit(Arrays.asList(2));
+			fail("expected RejectedExecutionException");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList(Arrays.asList(2)), this.dropped);
+		runAll();
+		assertEquals(Arrays.asList(Arrays.asList(1)), this.written);
+	}
+
+	@Test
+	public void dropOldestFailsTheDroppedFuture() {
+		FlushPipeline<Integer> p = pipeline(2, LazyBatchSaver.BackpressurePolicy.DROP_OLDEST);
+		p.submit(Arrays.asList(1));
+		CompletableFuture<Void> first = p.whenAllWritten();
+		p.submit(Arrays.asList(2));
+		p.submit(Arrays.asList(3));
+
+		assertEquals(Arrays.asList(Arrays.asList(1)), this.dropped);
+		assertTrue(first.isCompletedExceptionally());
+		try {
+			first.join();
+			fail("dropped batch must not be reported as written");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		runAll();
+		assertEquals(Arrays.asList(Arrays.asList(2), Arrays.asList(3)), this.written);
+	}
+
+	@Test
+	public void dropOldestNeverDropsReplayedBatch() {
+		List<List<Integer>> replayed = new ArrayList<>();
+		FlushPipeline<Integer> p = pipeline(2, LazyBatchSaver.BackpressurePolicy.DROP_OLDEST);
+		CompletableFuture<Void> replay = p.submitUnbounded(Arrays.asList(0), replayed::add);
+		p.submit(Arrays.asList(1));
+		p.submit(Arrays.asList(2));
+
+		assertEquals(Arrays.asList(Arrays.asList(1)), this.dropped);
+		assertFalse(replay.isDone());
+		runAll();
+		assertTrue(replay.isDone() && !replay.isCompletedExceptionally());
+		assertEquals(Arrays.asList(Arrays.asList(0)), replayed);
+		assertEquals(Arrays.asList(Arrays.asList(2)), this.written);
+	}
+
+	@Test
+	public void blockWaitsForInFlightBatch() throws Exception {
+		FlushPipeline<Integer> p = pipeline(1, LazyBatchSaver.BackpressurePolicy.BLOCK);
+		p.submit(Arrays.asList(1));
+		Thread producer = new Thread(() -> p.submit(Arrays.asList(2)));
+		producer.start();
+		awaitWaiting(producer);
+
+		runAll();
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		runAll();
+		assertEquals(Arrays.asList(Arrays.asList(1), Arrays.asList(2)), this.written);
+		assertTrue(this.dropped.isEmpty());
+	}
+
+	@Test
+	public void interruptedBlockHandsBatchToDropHandler() throws Exception {
+		FlushPipeline<Integer> p = pipeline(1, LazyBatchSaver.BackpressurePolicy.BLOCK);
+		p.submit(Arrays.asList(1));
+		AtomicReference<Throwable> thrown = new AtomicReference<>();
+		Thread producer = new Thread(() -> {
+			try {
+				p.submit(Arrays.asList(2));
+			} catch (Throwable e) {
+				thrown.set(e);
+			}
+		});
+		producer.start();
+		awaitWaiting(producer);
+
+		producer.interrupt();
+		producer.join(5000);
+		assertTrue(thrown.get() instanceof IllegalStateException);
+		assertEquals(Arrays.asList(Arrays.asList(2)), this.dropped);
+		runAll();
+		assertEquals(Arrays.asList(Arrays.asList(1)), this.written);
+	}
+
+	private static void awaitWaiting(Thread t) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (t.getState() != Thread.State.WAITING) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("thread not blocked: " + t.getState());
+			}
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * LazyBatchSaver 多生产者吞吐对比，单条带 vs 多条带，模拟每批写入耗时 2ms 的 db
+ * 直接运行 main 方法，输出每种线程数下的 items/s
+ */
+public class LazyBatchSaverBenchmark {
+
+	private static final int FLASH_SIZE = 100;
+	private static final long RUN_MS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int[] threadNums = {1, 2, 4, 8, 16, 32, 64};
+		System.out.println("threads\tstripes=1\tstripes=threads");
+		for (int threads : threadNums) {
+			long single = run(threads, 1);
+			long striped = run(threads, threads);
+			System.out.println(threads + "\t" + single + "\t" + striped);
+		}
+	}
+
+	private static long run(int threads, int stripes) throws InterruptedException {
+		LongAdder written = new LongAdder();
+		Consumer<List<Integer>> consumer = list -> {
+			sleepQuietly(2);
+			written.add(list.size());
+		};
+		LazyBatchSaver<Integer> saver = new LazyBatchSaver<>(FLASH_SIZE, consumer, stripes);
+		AtomicBoolean stop = new AtomicBoolean(false);
+		CountDownLatch done = new CountDownLatch(threads);
+		List<Thread> list = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			list.add(new Thread(() -> {
+				int n = 0;
+				while (!stop.get()) {
+					saver.addAndMayFlush(n++);
+				}
+				done.countDown();
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread t : list) {
+			t.start();
+		}
+		Thread.sleep(RUN_MS);
+		stop.set(true);
+		done.await();
+		long costNs = System.nanoTime() - start;
+		saver.close();
+		return written.sum() * TimeUnit.SECONDS.toNanos(1) / costNs;
+	}
+
+	private static void sleepQuietly(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
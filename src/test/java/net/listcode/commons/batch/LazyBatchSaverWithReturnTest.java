@@ -0,0 +1,230 @@
+package net.listcode.commons.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * LazyBatchSaverWithReturn 的强制求值（getAndRemove）
+ * @author leo
+ *
+ */
+public class LazyBatchSaverWithReturnTest {
+
+	/** 记录每次调用 function 传入的数据，返回值是 数据 + "!" */
+	private final List<List<String>> calls = Collections.synchronizedList(new ArrayList<>());
+
+	private Function<List<String>, List<String>> echo(CountDownLatch firstCallEntered, CountDownLatch release) {
+		return list -> {
+			this.calls.add(new ArrayList<>(list));
+			if (this.calls.size() == 1 && release != null) {
+				firstCallEntered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			List<String> r = new ArrayList<>(list.size());
+			for (String s : list) {
+				r.add(s + "!");
+			}
+			return r;
+		};
+	}
+
+	@Test
+	public void getAndRemoveWritesPendingOnce() {
+		try (LazyBatchSaverWithReturn<String, String, String> saver =
+					 new LazyBatchSaverWithReturn<>(100, echo(null, null), 100)) {
+			saver.addAndMayFlush("a", "a");
+			saver.addAndMayFlush("b", "b");
+			assertEquals("a!", saver.getAndRemove("a"));
+			//b 和 a 在同一次写入中求值，不会再写一次
+			assertEquals("b!", saver.getAndRemove("b"));
+			assertNull(saver.getAndRemove("b"));
+			assertEquals(Arrays.asList(Arrays.asList("a", "b")), this.calls);
+		}
+	}
+
+	@Test
+	public void concurrentGetAndRemoveIsSingleFlight() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try (LazyBatchSaverWithReturn<String, String, String> saver =
+					 new LazyBatchSaverWithReturn<>(100, echo(entered, release), 100)) {
+			saver.addAndMayFlush("a", "a");
+			Getter first = new Getter(saver, "a");
+			first.start();
+			assertEquals(true, entered.await(5, TimeUnit.SECONDS));
+
+			//第一个批次写入期间添加的数据，多个线程同时强制求值
+			saver.addAndMayFlush("b", "b");
+			saver.addAndMayFlush("c", "c");
+			saver.addAndMayFlush("d", "d");
+			List<Getter> waiters = new ArrayList<>();
+			for (String key : Arrays.asList("b", "c", "d")) {
+				Getter g = new Getter(saver, key);
+				g.start();
+				waiters.add(g);
+			}
+			for (Getter g : waiters) {
+				awaitWaiting(g);
+			}
+			release.countDown();
+
+			assertEquals("a!", first.result());
+			for (Getter g : waiters) {
+				assertEquals(g.key + "!", g.result());
+			}
+			//等第一个批次写完后，攒下的数据只写入一次，而不是每个线程各写一次
+			assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b", "c", "d")), this.calls);
+		}
+	}
+
+	@Test
+	public void getDuringResolveAllWaitsForBulkValue() throws Exception {
+		CountDownLatch claimed = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try (LazyBatchSaverWithReturn<String, String, String> saver =
+					 new LazyBatchSaverWithReturn<>(100, echo(null, null), 100)) {
+			saver.addAndMayFlush("a", "a");
+			saver.addAndMayFlush("b", "b");
+			ValueHolder<String, String> a = new ValueHolder<>(saver::getAndRemove, "a");
+			ValueHolder<String, String> b = new ValueHolder<>(saver::getAndRemove, "b");
+			//批量求值已经取走返回值，还没有交给 holder
+			Function<List<String>, Map<String, String>> bulk = keys -> {
+				Map<String, String> values = saver.getAndRemoveAll(keys);
+				claimed.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return values;
+			};
+			Thread resolver = new Thread(() -> ValueHolder.resolveAll(Arrays.asList(a, b), bulk));
+			resolver.start();
+			assertEquals(true, claimed.await(5, TimeUnit.SECONDS));
+
+			//这时单独 get 要等批量求值的结果，而不是自己去取，拿到null
+			AtomicReference<String> got = new AtomicReference<>();
+			Thread getter = new Thread(() -> got.set(a.get()));
+			getter.start();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (getter.getState() != Thread.State.WAITING && getter.isAlive()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+			resolver.join(5000);
+			getter.join(5000);
+
+			assertEquals("a!", got.get());
+			assertEquals("a!", a.tryGet());
+			assertEquals("b!", b.get());
+			assertEquals(Arrays.asList(Arrays.asList("a", "b")), this.calls);
+		}
+	}
+
+	/** 包含 bad 中任意一条时整批失败，异常是 error 生成的 */
+	private Function<List<String>, List<String>> failOn(List<String> bad, Function<String, RuntimeException> error) {
+		return list -> {
+			this.calls.add(new ArrayList<>(list));
+			for (String s : list) {
+				if (bad.contains(s)) {
+					throw error.apply(s);
+				}
+			}
+			List<String> r = new ArrayList<>(list.size());
+			for (String s : list) {
+				r.add(s + "!");
+			}
+			return r;
+		};
+	}
+
+	@Test
+	public void bisectIsolatesBadItemsInBothHalves() {
+		List<String> bad = Arrays.asList("0", "99");
+		List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+		try (LazyBatchSaverWithReturn<String, String, String> saver = LazyBatchSaverWithReturn
+				.<String, String, String>builder(100, failOn(bad, s -> new IllegalArgumentException("bad " + s)), 100)
+				.bisectOnFailure((item, e) -> deadLetters.add(item))
+				.build()) {
+			for (int i = 0; i < 100; i++) {
+				saver.addAndMayFlush(String.valueOf(i), String.valueOf(i));
+			}
+			//两半都有问题的数据时也继续二分，其余 98 条照常写入
+			assertEquals(bad, deadLetters);
+			for (int i = 0; i < 100; i++) {
+				String key = String.valueOf(i);
+				assertEquals(bad.contains(key) ? null : key + "!", saver.getAndRemove(key));
+			}
+		}
+	}
+
+	@Test
+	public void outageStopsBisecting() {
+		List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+		try (LazyBatchSaverWithReturn<String, String, String> saver = LazyBatchSaverWithReturn
+				.<String, String, String>builder(8, failOn(Arrays.asList("0", "7"), s -> new IllegalStateException("down")), 100)
+				.bisectOnFailure((item, e) -> deadLetters.add(item), e -> e instanceof IllegalStateException)
+				.build()) {
+			for (int i = 0; i < 8; i++) {
+				saver.addAndMayFlush(String.valueOf(i), String.valueOf(i));
+			}
+			//下游不可用的异常不再二分，整批进入死信，只调用一次
+			assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7"), deadLetters);
+			assertEquals(1, this.calls.size());
+			assertNull(saver.getAndRemove("3"));
+		}
+	}
+
+	private static void awaitWaiting(Thread t) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (t.getState() != Thread.State.WAITING) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("thread not waiting: " + t.getState());
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	private static final class Getter extends Thread {
+		private final LazyBatchSaverWithReturn<String, String, String> saver;
+		private final String key;
+		private final AtomicReference<Object> value = new AtomicReference<>();
+
+		private Getter(LazyBatchSaverWithReturn<String, String, String> saver, String key) {
+			this.saver = saver;
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.value.set(this.saver.getAndRemove(this.key));
+			} catch (Throwable e) {
+				this.value.set(e);
+			}
+		}
+
+		private Object result() throws InterruptedException {
+			join(5000);
+			return this.value.get();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package net.listcode.commons.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LazyBatchSaverWithReturn 保留大量返回值时 ignore、取走返回值、写入并淘汰的耗时，
+ * 保留数分别为 1万、10万、100万，每种操作的耗时应该和保留数无关，直接运行 main 方法
+ */
+public class ReturnRetentionBenchmark {
+
+	private static final int FLASH_SIZE = 1000;
+	private static final int OPS = 200_000;
+	private static final int[] RETAINED = {10_000, 100_000, 1_000_000};
+
+	public static void main(String[] args) {
+		for (int round = 0; round < 3; round++) {
+			//第一轮是预热
+			for (int retained : RETAINED) {
+				run(round, retained);
+			}
+		}
+	}
+
+	private static void run(int round, int retained) {
+		LazyBatchSaverWithReturn<Integer, Integer, Integer> saver = new LazyBatchSaverWithReturn<>(FLASH_SIZE,
+				ReturnRetentionBenchmark::identity, retained);
+		int next = 0;
+		//先填满保留的返回值
+		for (; next < retained; next++) {
+			saver.addAndMayFlush(next, next);
+		}
+
+		//已经写入的 key 上 ignore，同时添加新 key 保持保留数不变（写入时淘汰最早的）
+		long start = System.nanoTime();
+		for (int i = 0; i < OPS; i++) {
+			saver.ignore(next - retained + i % retained);
+			saver.addAndMayFlush(next, next);
+			next++;
+		}
+		long ignoreNanos = System.nanoTime() - start;
+		int lastWritten = next;
+
+		//还没有写入的 key 上 ignore
+		start = System.nanoTime();
+		for (int i = 0; i < OPS; i++) {
+			saver.addAndMayFlush(next, next);
+			saver.ignore(next);
+			next++;
+		}
+		long ignorePendingNanos = System.nanoTime() - start;
+
+		//从最近写入的开始取走返回值
+		start = System.nanoTime();
+		int hits = 0;
+		for (int i = 0; i < OPS; i++) {
+			if (saver.tryGetAndRemove(lastWritten - 1 - i) != null) {
+				hits++;
+			}
+		}
+		long getNanos = System.nanoTime() - start;
+
+		System.out.printf("round %d, retained %8d: ignore+add %6.1f ns/op, ignore pending %6.1f ns/op, get %6.1f ns/op (hits %d)%n",
+				round, retained, ignoreNanos / (double) OPS, ignorePendingNanos / (double) OPS, getNanos / (double) OPS, hits);
+	}
+
+	private static List<Integer> identity(List<Integer> list) {
+		return new ArrayList<>(list);
+	}
+}
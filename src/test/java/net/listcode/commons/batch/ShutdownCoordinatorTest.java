@@ -0,0 +1,131 @@
+package net.listcode.commons.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * ShutdownCoordinator 在全局截止时间内并行关闭，并报告没有完成的任务和 saver
+ * @author leo
+ *
+ */
+public class ShutdownCoordinatorTest {
+
+	/** 放行所有阻塞的收尾、close 和写入 */
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final TimeTaskScheduler scheduler = new TimeTaskScheduler("ShutdownCoordinatorTest", 2);
+	private final FlushRegistry registry = new FlushRegistry(1);
+
+	@After
+	public void tearDown() {
+		this.release.countDown();
+		this.scheduler.shutdown();
+	}
+
+	/* 等待放行，不响应中断，模拟卡住的收尾 */
+	private void block() {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				this.release.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private BaseTimeTask task(boolean slowClearUp) {
+		return new BaseTimeTask(new Date(), 60, false) {
+			@Override
+			protected void doit() {
+			}
+
+			@Override
+			protected void clearUp() {
+				if (slowClearUp) {
+					block();
+				}
+			}
+		};
+	}
+
+	private static String describe(Object o) {
+		return o.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(o));
+	}
+
+	@Test
+	public void reportsTasksThatMissedTheDeadline() throws Exception {
+		ShutdownCoordinator coordinator = new ShutdownCoordinator(this.registry);
+		BaseTimeTask fastTask = task(false);
+		BaseTimeTask slowTask = task(true);
+		this.scheduler.schedule(fastTask);
+		this.scheduler.schedule(slowTask);
+		coordinator.register(this.scheduler);
+
+		long start = System.nanoTime();
+		List<String> unfinished = coordinator.shutdown(300, TimeUnit.MILLISECONDS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("took " + elapsed + "ms", elapsed < 1500);
+		assertEquals(Arrays.asList(describe(slowTask)), unfinished);
+		assertTrue(fastTask.isStoped());
+		//只执行一次，之后返回第一次的结果
+		assertSame(unfinished, coordinator.shutdown(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void reportsClosesAndFlushesThatMissedTheDeadline() {
+		ShutdownCoordinator coordinator = new ShutdownCoordinator(this.registry);
+		coordinator.register("fast-closeable", () -> { });
+		coordinator.register("slow-closeable", this::block);
+		//两个写入慢的 saver，FlushRegistry 只有一个线程，也要在截止时间内并行写入
+		LazyBatchSaver<Integer> slowSaver1 = LazyBatchSaver.<Integer>builder(100, l -> block())
+				.flushRegistry(this.registry).build();
+		LazyBatchSaver<Integer> slowSaver2 = LazyBatchSaver.<Integer>builder(100, l -> block())
+				.flushRegistry(this.registry).build();
+		AtomicInteger fastWrites = new AtomicInteger();
+		LazyBatchSaver<Integer> fastSaver = LazyBatchSaver.<Integer>builder(100, l -> fastWrites.incrementAndGet())
+				.flushRegistry(this.registry).build();
+		slowSaver1.addAndMayFlush(1);
+		slowSaver2.addAndMayFlush(2);
+		fastSaver.addAndMayFlush(3);
+
+		long start = System.nanoTime();
+		List<String> unfinished = coordinator.shutdown(300, TimeUnit.MILLISECONDS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("took " + elapsed + "ms", elapsed < 1500);
+		assertEquals(new HashSet<>(Arrays.asList("slow-closeable", describe(slowSaver1), describe(slowSaver2))),
+				new HashSet<>(unfinished));
+		assertEquals(1, fastWrites.get());
+	}
+
+	@Test
+	public void saverRegisteredAsCloseableIsFlushedOnce() {
+		ShutdownCoordinator coordinator = new ShutdownCoordinator(this.registry);
+		AtomicInteger writes = new AtomicInteger();
+		LazyBatchSaver<Integer> saver = LazyBatchSaver.<Integer>builder(100, l -> writes.incrementAndGet())
+				.flushRegistry(this.registry).build();
+		coordinator.register("saver", saver);
+		saver.addAndMayFlush(1);
+
+		assertTrue(coordinator.shutdown(1, TimeUnit.SECONDS).isEmpty());
+		assertEquals(1, writes.get());
+		assertEquals(0, this.registry.size());
+	}
+}
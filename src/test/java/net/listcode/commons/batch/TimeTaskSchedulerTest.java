@@ -0,0 +1,124 @@
+package net.listcode.commons.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * TimeTaskScheduler 的网格调度和停止
+ * @author leo
+ *
+ */
+public class TimeTaskSchedulerTest {
+
+	private final TimeTaskScheduler scheduler = new TimeTaskScheduler("TimeTaskSchedulerTest", 2);
+
+	@After
+	public void tearDown() {
+		this.scheduler.shutdown();
+	}
+
+	/**
+	 * 记录每次 doit 的时间，doit 可以被阻塞
+	 */
+	private static class RecordingTask extends BaseTimeTask {
+		private final long origin = System.nanoTime();
+		private final List<Long> runMillis = Collections.synchronizedList(new ArrayList<>());
+		private final CountDownLatch firstRun = new CountDownLatch(1);
+		private final AtomicInteger clearUps = new AtomicInteger();
+		private final long blockMillis;
+		private volatile boolean interrupted = false;
+
+		private RecordingTask(Date fixRunPoint, boolean isRunAtStart, long blockMillis) {
+			super(fixRunPoint, 1, isRunAtStart);
+			this.blockMillis = blockMillis;
+		}
+
+		@Override
+		protected void doit() throws InterruptedException {
+			this.runMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.origin));
+			this.firstRun.countDown();
+			if (this.blockMillis > 0) {
+				try {
+					Thread.sleep(this.blockMillis);
+				} catch (InterruptedException e) {
+					this.interrupted = true;
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		protected void clearUp() {
+			this.clearUps.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void runsOnGridOfFixRunPoint() throws Exception {
+		//网格点在 300ms 前，下一个网格点在 700ms 后
+		RecordingTask task = new RecordingTask(new Date(System.currentTimeMillis() - 300), false, 0);
+		this.scheduler.schedule(task);
+		Thread.sleep(1900);
+		assertEquals(task.runMillis.toString(), 2, task.runMillis.size());
+		long first = task.runMillis.get(0);
+		long second = task.runMillis.get(1);
+		assertTrue("first run at " + first, first >= 600 && first < 900);
+		assertTrue("second run at " + second, second - first >= 900 && second - first < 1100);
+	}
+
+	@Test
+	public void runAtStartRunsImmediatelyThenOnGrid() throws Exception {
+		RecordingTask task = new RecordingTask(new Date(System.currentTimeMillis() - 300), true, 0);
+		this.scheduler.schedule(task);
+		Thread.sleep(900);
+		assertEquals(task.runMillis.toString(), 2, task.runMillis.size());
+		assertTrue("first run at " + task.runMillis.get(0), task.runMillis.get(0) < 200);
+		long second = task.runMillis.get(1);
+		assertTrue("second run at " + second, second >= 600 && second < 900);
+	}
+
+	@Test
+	public void stopDuringDoitInterruptsAndClearsUpOnce() throws Exception {
+		RecordingTask task = new RecordingTask(new Date(), true, 10_000);
+		this.scheduler.schedule(task);
+		assertTrue(task.firstRun.await(5, TimeUnit.SECONDS));
+
+		long start = System.nanoTime();
+		assertTrue(this.scheduler.stop(task, 5, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+		assertTrue(task.interrupted);
+		assertTrue(task.isStoped());
+		assertEquals(1, task.clearUps.get());
+		assertEquals(0, this.scheduler.size());
+
+		//停止后不再执行
+		Thread.sleep(1200);
+		assertEquals(1, task.runMillis.size());
+		assertEquals(1, task.clearUps.get());
+	}
+
+	@Test
+	public void stopBetweenRunsClearsUpWithoutRunning() throws Exception {
+		RecordingTask task = new RecordingTask(new Date(), true, 0);
+		this.scheduler.schedule(task);
+		assertTrue(task.firstRun.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+
+		assertTrue(this.scheduler.stop(task, 5, TimeUnit.SECONDS));
+		assertTrue(task.isStoped());
+		assertEquals(1, task.clearUps.get());
+		Thread.sleep(1200);
+		assertEquals(1, task.runMillis.size());
+	}
+}